@@ -0,0 +1,1250 @@
+package com.logentries.logger;
+
+import com.logentries.misc.Diagnostics;
+import com.logentries.misc.Platform;
+import com.logentries.misc.Utils;
+import com.logentries.net.LogTransport;
+import com.logentries.net.LogentriesClient;
+import com.logentries.net.ThrottledException;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncLoggingWorker {
+
+    /*
+     * Constants
+     */
+    private static final String TAG = "LogentriesAndroidLogger";
+
+    private static final int RECONNECT_WAIT = 100; // milliseconds.
+    private static final int BROKEN_CONNECTION_RETRY_INTERVAL = 1000; // milliseconds.
+    /**
+     * Size of the internal event queue; it is split evenly between the socket appenders.
+     */
+    private static final int QUEUE_SIZE = 32768;
+    /**
+     * Default max. size of the queued logs in bytes, split evenly between the socket appenders as well.
+     */
+    public static final long DEFAULT_MAX_QUEUE_BYTES = 8 * 1024 * 1024;
+    /**
+     * Max. number of socket appenders (i.e. parallel connections).
+     */
+    public static final int MAX_SENDER_COUNT = 16;
+    /**
+     * Limit on individual log length ie. 2^16
+     */
+    public static final int LOG_LENGTH_LIMIT = 65536;
+
+    /**
+     * Number of logs read from the local storage at once.
+     */
+    private static final int STORAGE_READ_BATCH_SIZE = 100;
+
+    /**
+     * Max. time the appender is held off by the transport with the logs kept in the queue; during
+     * longer pauses they are moved to the local storage.
+     */
+    private static final long MAX_QUEUED_HOLD_OFF = 1000; // milliseconds.
+
+    /**
+     * Default max. time the caller waits for free space in the queue with {@link OverflowPolicy#BLOCK}.
+     */
+    public static final long DEFAULT_BLOCK_TIMEOUT = 100; // milliseconds.
+
+    private static final int MAX_NETWORK_FAILURES_ALLOWED = 3;
+    private static final int MAX_RECONNECT_ATTEMPTS = 3;
+
+    /**
+     * Error message displayed when invalid API key is detected.
+     */
+    private static final String INVALID_TOKEN = "Given Token does not look right!";
+
+    /**
+     * Error message displayed when queue overflow occurs
+     */
+    private static final String QUEUE_OVERFLOW = "Logentries Buffer Queue Overflow. Message Dropped!";
+
+    /**
+     * Indicator if the socket appender has been started.
+     */
+    private boolean started = false;
+
+    /**
+     * Whether should send logs with or without meta data
+     */
+    private boolean sendRawLogMessage = false;
+
+    /**
+     * What to do with a new log when the queue is full, and how long to wait for free space in it.
+     */
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private volatile long blockTimeout = DEFAULT_BLOCK_TIMEOUT;
+
+    /**
+     * Max. size of the queued logs in bytes - the queue is full when either it or the number of logs is reached.
+     */
+    private volatile long maxQueueBytes = DEFAULT_MAX_QUEUE_BYTES;
+
+    /**
+     * Whether the logs from the local storage are sent starting with the newest ones.
+     */
+    private volatile boolean replayNewestFirst = false;
+
+    /**
+     * Asynchronous socket appenders, each with its own queue and connection. Logs are assigned
+     * to them by the tag, so the logs of one tag are sent in order. The first one also uploads
+     * the logs from the local storage.
+     */
+    private final SocketAppender[] appenders;
+
+    /**
+     * Logs queue storage, shared by the socket appenders; opened by the first of them to start.
+     */
+    private volatile LogStorage localStorage;
+
+    /**
+     * The most recent logs, kept for crash reports; null if not enabled.
+     */
+    private volatile RecentLogs recentLogs;
+
+    /**
+     * Stack traces of the logged throwables, sent recently.
+     */
+    private final StackTraceCache stackTraces = new StackTraceCache();
+
+    /**
+     * Crash-safe copy of the queue; null if the durable queue is not used, or until the socket appenders
+     * have opened it.
+     */
+    private volatile LogJournal journal;
+
+    private final boolean useDurableQueue;
+
+    private final Platform platform;
+
+    /**
+     * Runs the socket appenders; null if each of them has its own thread.
+     */
+    private final Executor executor;
+
+    /**
+     * Device id; if not given by the user it is read (or generated) on the socket appender's thread.
+     */
+    private volatile String deviceId;
+
+    public AsyncLoggingWorker(Platform platform, boolean useSsl, boolean useHttpPost, boolean printTraceId,
+                              boolean printDeviceId, String deviceId, boolean printPriority, boolean useDataHub,
+                              String logToken, String dataHubAddress, int dataHubPort, boolean logHostName)
+            throws IOException {
+        this(platform, useSsl, useHttpPost, printTraceId, printDeviceId, deviceId, printPriority, useDataHub, logToken,
+                dataHubAddress, dataHubPort, logHostName, false);
+    }
+
+    public AsyncLoggingWorker(Platform platform, boolean useSsl, boolean useHttpPost, boolean printTraceId,
+                              boolean printDeviceId, String deviceId, boolean printPriority, boolean useDataHub,
+                              String logToken, String dataHubAddress, int dataHubPort, boolean logHostName,
+                              boolean useDurableQueue) throws IOException {
+        this(platform, createLogentriesClient(useSsl, useHttpPost, useDataHub, logToken, dataHubAddress, dataHubPort),
+                printTraceId, printDeviceId, deviceId, printPriority, logHostName, useDurableQueue);
+    }
+
+    /**
+     * Creates the worker, which sends logs over transports created by the given factory.
+     */
+    public AsyncLoggingWorker(Platform platform, LogTransport.Factory transportFactory, boolean printTraceId,
+                              boolean printDeviceId, String deviceId, boolean printPriority, boolean logHostName,
+                              boolean useDurableQueue) throws IOException {
+        this(platform, transportFactory, printTraceId, printDeviceId, deviceId, printPriority, logHostName,
+                useDurableQueue, 1);
+    }
+
+    /**
+     * Creates the worker, which sends logs over senderCount parallel connections.
+     */
+    public AsyncLoggingWorker(Platform platform, LogTransport.Factory transportFactory, boolean printTraceId,
+                              boolean printDeviceId, String deviceId, boolean printPriority, boolean logHostName,
+                              boolean useDurableQueue, int senderCount) throws IOException {
+        this(platform, transportFactory, printTraceId, printDeviceId, deviceId, printPriority, logHostName,
+                useDurableQueue, senderCount, null);
+    }
+
+    /**
+     * Creates the worker, which sends logs over senderCount parallel connections, running the socket
+     * appenders on the given executor - e.g. on virtual threads, or on a scheduler shared with the
+     * application. Each appender takes a thread of the executor for as long as the worker runs.
+     *
+     * @param executor null to start a daemon thread for each appender.
+     */
+    public AsyncLoggingWorker(Platform platform, LogTransport.Factory transportFactory, boolean printTraceId,
+                              boolean printDeviceId, String deviceId, boolean printPriority, boolean logHostName,
+                              boolean useDurableQueue, int senderCount, Executor executor) throws IOException {
+        if (senderCount <= 0 || senderCount > MAX_SENDER_COUNT) {
+            throw new IllegalArgumentException("senderCount must be greater than zero and not greater than " +
+                    MAX_SENDER_COUNT);
+        }
+
+        Utils.setPlatform(platform);
+        this.platform = platform;
+        this.executor = executor;
+        this.deviceId = deviceId;
+        this.useDurableQueue = useDurableQueue;
+        appenders = new SocketAppender[senderCount];
+        for (int i = 0; i < senderCount; ++i) {
+            appenders[i] = new SocketAppender(i, QUEUE_SIZE / senderCount, maxQueueBytes / senderCount,
+                    transportFactory, logHostName, this.sendRawLogMessage, printTraceId, printDeviceId, printPriority);
+        }
+        startAppenders();
+    }
+
+    public void setSendRawLogMessage(boolean sendRawLogMessage) {
+        this.sendRawLogMessage = sendRawLogMessage;
+    }
+
+    public boolean getSendRawLogMessage() {
+        return sendRawLogMessage;
+    }
+
+    public void setMaxLinger(long maxLinger) {
+        for (SocketAppender appender : appenders) {
+            appender.scheduler.setMaxLinger(maxLinger);
+        }
+    }
+
+    public void setMaxBatchCount(int maxBatchCount) {
+        for (SocketAppender appender : appenders) {
+            appender.scheduler.setMaxBatchCount(maxBatchCount);
+        }
+    }
+
+    public void setMaxBatchBytes(int maxBatchBytes) {
+        for (SocketAppender appender : appenders) {
+            appender.scheduler.setMaxBatchBytes(maxBatchBytes);
+        }
+    }
+
+    /**
+     * Only the primary appender sends the backlog, but the settings are kept the same for all.
+     */
+    public void setBacklogShare(double backlogShare) {
+        for (SocketAppender appender : appenders) {
+            appender.scheduler.setBacklogShare(backlogShare);
+        }
+    }
+
+    public void setMaxBacklogRate(int maxBacklogRate) {
+        for (SocketAppender appender : appenders) {
+            appender.scheduler.setMaxBacklogRate(maxBacklogRate);
+        }
+    }
+
+    public void setReplayNewestFirst(boolean replayNewestFirst) {
+        this.replayNewestFirst = replayNewestFirst;
+    }
+
+    public boolean getReplayNewestFirst() {
+        return replayNewestFirst;
+    }
+
+    public int getSenderCount() {
+        return appenders.length;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("overflowPolicy cannot be null");
+        }
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setBlockTimeout(long blockTimeout) {
+        if (blockTimeout < 0) {
+            throw new IllegalArgumentException("blockTimeout must be greater or equal to zero");
+        }
+        this.blockTimeout = blockTimeout;
+    }
+
+    public long getBlockTimeout() {
+        return blockTimeout;
+    }
+
+    public void setMaxQueueBytes(long maxQueueBytes) {
+        if (maxQueueBytes <= 0) {
+            throw new IllegalArgumentException("maxQueueBytes must be greater than zero");
+        }
+        this.maxQueueBytes = maxQueueBytes;
+        for (SocketAppender appender : appenders) {
+            appender.queue.setMaxBytes(maxQueueBytes / appenders.length);
+        }
+    }
+
+    public long getMaxQueueBytes() {
+        return maxQueueBytes;
+    }
+
+    /**
+     * Returns the estimated size of the logs in the queue in bytes.
+     */
+    public long getQueuedBytes() {
+        long bytes = 0;
+        for (SocketAppender appender : appenders) {
+            bytes += appender.queue.getBytes();
+        }
+        return bytes;
+    }
+
+    public int getQueuedCount() {
+        int count = 0;
+        for (SocketAppender appender : appenders) {
+            count += appender.queue.size();
+        }
+        return count;
+    }
+
+    /**
+     * Keeps the most recent logs in memory - the logs kept so far are dropped.
+     *
+     * @param maxCount zero to stop keeping them.
+     */
+    public void setRecentLogs(int maxCount, long maxBytes) {
+        recentLogs = maxCount == 0 ? null : new RecentLogs(maxCount, maxBytes);
+    }
+
+    /**
+     * Returns the most recent logs, or null if they are not kept.
+     */
+    public RecentLogs getRecentLogs() {
+        return recentLogs;
+    }
+
+    public LogStorage.Backlog getStorageBacklog() {
+        LogStorage storage = localStorage;
+        return storage == null ? null : storage.getBacklog();
+    }
+
+    /**
+     * Queues the line, throws RuntimeException if it has been rejected by the overflow policy.
+     */
+    public void addLineToQueue(int priorityLevel, String tag, String line) throws RuntimeException {
+        if (!tryAddLineToQueue(priorityLevel, tag, line)) {
+            throw new RuntimeException(QUEUE_OVERFLOW);
+        }
+    }
+
+    /**
+     * Queues the line; a long one is split into chunks, which are queued one after another.
+     *
+     * @return false if the line (with all its chunks, for a long one) has been rejected by the overflow policy.
+     */
+    public boolean tryAddLineToQueue(int priorityLevel, String tag, String line) {
+        // Check that we have all parameters set and socket appenders running.
+        if (!this.started) {
+            startAppenders();
+        }
+
+        if (line.length() > LOG_LENGTH_LIMIT) {
+            List<LogItem> logItems = new ArrayList<>();
+            addChunks(logItems, priorityLevel, tag, line, System.currentTimeMillis());
+            return tryOfferAllToQueue(logItems);
+
+        } else {
+            return tryOfferToQueue(priorityLevel, tag, line);
+        }
+    }
+
+    /**
+     * Queues the lines, throws RuntimeException if they have been rejected by the overflow policy.
+     */
+    public void addLinesToQueue(int priorityLevel, String tag, Collection<String> lines) throws RuntimeException {
+        if (!tryAddLinesToQueue(priorityLevel, tag, lines)) {
+            throw new RuntimeException(QUEUE_OVERFLOW);
+        }
+    }
+
+    /**
+     * Queues the lines one after another at once - they are not interleaved with other logs of the tag,
+     * and they all have the same timestamp. Long lines are split into chunks.
+     *
+     * @return false if the lines have been rejected by the overflow policy - all of them.
+     */
+    public boolean tryAddLinesToQueue(int priorityLevel, String tag, Collection<String> lines) {
+        if (!this.started) {
+            startAppenders();
+        }
+
+        long timestamp = System.currentTimeMillis();
+        List<LogItem> logItems = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            if (line.length() > LOG_LENGTH_LIMIT) {
+                addChunks(logItems, priorityLevel, tag, line, timestamp);
+            } else {
+                logItems.add(new LogItem(priorityLevel, tag, line, timestamp));
+            }
+        }
+        return logItems.isEmpty() || tryOfferAllToQueue(logItems);
+    }
+
+    private static void addChunks(List<LogItem> logItems, int priority, String tag, String line, long timestamp) {
+        for (String logChunk : Utils.splitStringToChunks(line, LOG_LENGTH_LIMIT)) {
+            logItems.add(new LogItem(priority, tag, logChunk, timestamp));
+        }
+    }
+
+    /**
+     * Queues the message, which is rendered by the socket appender (and split into chunks there,
+     * if it turns out to be too long) - or right away with the durable queue, see {@link DeferredMessage}.
+     *
+     * @return false if the message has been rejected by the overflow policy.
+     */
+    public boolean tryAddDeferredToQueue(int priorityLevel, String tag, DeferredMessage message) {
+        if (!this.started) {
+            startAppenders();
+        }
+
+        return tryOfferToQueue(new LogItem(priorityLevel, tag, message));
+    }
+
+    public void addThrowableToQueue(int priorityLevel, String tag, String message, Throwable throwable)
+            throws RuntimeException {
+        if (!tryAddThrowableToQueue(priorityLevel, tag, message, throwable)) {
+            throw new RuntimeException(QUEUE_OVERFLOW);
+        }
+    }
+
+    /**
+     * Queues the message with the throwable's stack trace. Both are rendered by the socket appender,
+     * and a stack trace sent recently is replaced with a reference to it.
+     *
+     * @param message may be null.
+     * @return false if the message has been rejected by the overflow policy.
+     */
+    public boolean tryAddThrowableToQueue(int priorityLevel, String tag, String message, Throwable throwable) {
+        return tryAddDeferredToQueue(priorityLevel, tag, new ThrowableMessage(message, throwable, stackTraces));
+    }
+
+    /**
+     * Same as {@link #tryAddThrowableToQueue(int, String, String, Throwable)}, with a deferred message.
+     */
+    public boolean tryAddThrowableToQueue(int priorityLevel, String tag, DeferredMessage message, Throwable throwable) {
+        return tryAddDeferredToQueue(priorityLevel, tag, new ThrowableMessage(message, throwable, stackTraces));
+    }
+
+    /**
+     * Stops the socket appender. queueFlushTimeout (if greater than 0) sets the maximum timeout in milliseconds for
+     * the message queue to be flushed by the socket appender, before it is stopped. If queueFlushTimeout
+     * is equal to zero - the method will wait until the queue is empty (which may be dangerous if the
+     * queue is constantly populated by another thread mantime.
+     *
+     * @param queueFlushTimeout - max. wait time in milliseconds for the message queue to be flushed.
+     */
+    public void close(long queueFlushTimeout) {
+        if (queueFlushTimeout < 0) {
+            throw new IllegalArgumentException("queueFlushTimeout must be greater or equal to zero");
+        }
+
+        long now = System.currentTimeMillis();
+
+        for (SocketAppender appender : appenders) {
+            while (!appender.queue.isEmpty()) {
+                if (queueFlushTimeout != 0) {
+                    if (System.currentTimeMillis() - now >= queueFlushTimeout) {
+                        // The timeout expired - need to stop the appenders.
+                        break;
+                    }
+                }
+            }
+        }
+        for (SocketAppender appender : appenders) {
+            appender.interrupt();
+        }
+        started = false;
+    }
+
+    public void close() {
+        close(0);
+    }
+
+    private static boolean checkTokenFormat(String token) {
+
+        return Utils.checkValidUUID(token);
+    }
+
+    private static LogentriesClient createLogentriesClient(boolean useSsl, boolean useHttpPost, boolean useDataHub,
+                                                           String logToken, String dataHubAddress, int dataHubPort) {
+        if (!checkTokenFormat(logToken)) {
+            throw new IllegalArgumentException(INVALID_TOKEN);
+        }
+
+        return new LogentriesClient(useHttpPost, useSsl, useDataHub, dataHubAddress, dataHubPort, logToken);
+    }
+
+    private synchronized void startAppenders() {
+        for (SocketAppender appender : appenders) {
+            appender.start();
+        }
+        started = true;
+    }
+
+    /**
+     * Picks the appender for the item by its tag - always the same one, so the logs of one tag keep
+     * their order.
+     */
+    private SocketAppender appenderFor(LogItem logItem) {
+        if (appenders.length == 1 || logItem.mTag == null) {
+            return appenders[0];
+        }
+        return appenders[(logItem.mTag.hashCode() & 0x7fffffff) % appenders.length];
+    }
+
+    private boolean tryOfferToQueue(int priority, String tag, String line) {
+        return tryOfferToQueue(new LogItem(priority, tag, line));
+    }
+
+    private boolean tryOfferToQueue(LogItem logItem) {
+        RecentLogs recent = recentLogs;
+        if (recent != null) {
+            // Kept whether the log is accepted by the overflow policy or not.
+            recent.add(logItem);
+        }
+
+        LogJournal journal = this.journal;
+        if (journal != null) {
+            // If the journal is full the item is still queued, just not crash-safe.
+            journal.append(logItem);
+        }
+
+        if (offerToQueue(appenderFor(logItem).queue, logItem)) {
+            return true;
+        }
+
+        commitToJournal(logItem);
+        return false;
+    }
+
+    /**
+     * Offers the items of one tag to the queue of its appender at once.
+     */
+    private boolean tryOfferAllToQueue(List<LogItem> logItems) {
+        RecentLogs recent = recentLogs;
+        LogJournal journal = this.journal;
+        for (LogItem logItem : logItems) {
+            if (recent != null) {
+                recent.add(logItem);
+            }
+            if (journal != null) {
+                journal.append(logItem);
+            }
+        }
+
+        if (offerAllToQueue(appenderFor(logItems.get(0)).queue, logItems)) {
+            return true;
+        }
+
+        for (LogItem logItem : logItems) {
+            commitToJournal(logItem);
+        }
+        return false;
+    }
+
+    /**
+     * Offers the item to the queue, applying the overflow policy if the queue is full.
+     *
+     * @return false if the item has been rejected.
+     */
+    private boolean offerToQueue(LogQueue queue, LogItem logItem) {
+        if (queue.offer(logItem)) {
+            return true;
+        }
+
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    return queue.offer(logItem, blockTimeout, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+
+            case DROP_NEWEST:
+                return false;
+
+            case DROP_LOWEST_PRIORITY:
+                // A big log may need several smaller ones to make room for it.
+                while (dropLowestPriority(queue, logItem.mPriority)) {
+                    if (queue.offer(logItem)) {
+                        return true;
+                    }
+                }
+                return false;
+
+            case SPILL:
+                return spillToStorage(logItem);
+
+            default:
+                break;
+        }
+
+        Diagnostics.e(TAG, "The queue is full - will try to drop the oldest message in it.");
+        // Dropping the oldest log (rather than spilling the queue to the local storage) is the default,
+        // since the spilled logs are sent out of order with the queued ones - see OverflowPolicy.SPILL.
+        // A big log may need several smaller ones to make room for it; an empty queue always takes it.
+        while (!queue.offer(logItem)) {
+            LogItem dropped = queue.poll();
+            if (dropped != null) {
+                commitToJournal(dropped);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same as {@link #offerToQueue(LogQueue, LogItem)} for several items of the same priority, which are
+     * either all queued one after another, or all rejected.
+     */
+    private boolean offerAllToQueue(LogQueue queue, List<LogItem> logItems) {
+        if (queue.offerAll(logItems)) {
+            return true;
+        }
+        if (logItems.size() > queue.getCapacity()) {
+            // No room will ever be made for them - nothing is dropped, nor waited for.
+            Diagnostics.e(TAG, "Cannot queue " + logItems.size() + " messages at once, more than the queue holds.");
+            return false;
+        }
+
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    return queue.offerAll(logItems, blockTimeout, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+
+            case DROP_NEWEST:
+                return false;
+
+            case DROP_LOWEST_PRIORITY:
+                while (dropLowestPriority(queue, logItems.get(0).mPriority)) {
+                    if (queue.offerAll(logItems)) {
+                        return true;
+                    }
+                }
+                return false;
+
+            case SPILL:
+                return spillAllToStorage(logItems);
+
+            default:
+                break;
+        }
+
+        Diagnostics.e(TAG, "The queue is full - will try to drop the oldest messages in it.");
+        while (!queue.offerAll(logItems)) {
+            LogItem dropped = queue.poll();
+            if (dropped == null) {
+                // The queue is empty - there is room for the items now.
+                return queue.offerAll(logItems);
+            }
+            commitToJournal(dropped);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the oldest of the queued items with a lower priority than the given one.
+     *
+     * @return false if there is no such item.
+     */
+    private boolean dropLowestPriority(LogQueue queue, int priority) {
+        for (LogItem queued : queue) {
+            if (queued.mPriority < priority) {
+                // The appender may have taken the item meanwhile - then there is free space anyway.
+                if (queue.remove(queued)) {
+                    commitToJournal(queued);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean spillToStorage(LogItem logItem) {
+        LogStorage storage = localStorage;
+        if (storage == null) {
+            // The appenders haven't opened the storage yet.
+            return false;
+        }
+
+        try {
+            storage.putLogToStorage(logItem);
+            commitToJournal(logItem);
+            return true;
+        } catch (IOException ex) {
+            Diagnostics.e(TAG, "Cannot save the log message to the local storage! Error: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Puts the items to the local storage in their order - if it fails part way, the items already
+     * stored are still sent.
+     */
+    private boolean spillAllToStorage(List<LogItem> logItems) {
+        LogStorage storage = localStorage;
+        if (storage == null) {
+            return false;
+        }
+
+        try {
+            for (LogItem logItem : logItems) {
+                storage.putLogToStorage(logItem);
+                commitToJournal(logItem);
+            }
+            return true;
+        } catch (IOException ex) {
+            Diagnostics.e(TAG, "Cannot save the log messages to the local storage! Error: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Marks the item as delivered (to the server or to the local storage), so it won't be
+     * recovered from the journal on the next start.
+     */
+    private void commitToJournal(LogItem logItem) {
+        LogJournal journal = this.journal;
+        if (journal != null) {
+            journal.commit(logItem);
+        }
+    }
+
+    /**
+     * Opens the journal once for all the socket appenders, if the durable queue is used. Logs are
+     * only queued until then.
+     */
+    private synchronized void openJournal() {
+        if (useDurableQueue && journal == null) {
+            try {
+                journal = new LogJournal(platform);
+            } catch (IOException ex) {
+                Diagnostics.e(TAG, "Cannot open the log journal - queued logs will not survive the process " +
+                        "being killed. Error: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Opens the local storage once for all the socket appenders.
+     */
+    private synchronized void openLocalStorage() throws IOException {
+        if (localStorage == null) {
+            localStorage = new LogStorage(platform);
+        }
+    }
+
+    private class SocketAppender implements Runnable {
+
+        private final String name;
+
+        /**
+         * Whether this appender uploads the logs from the local storage and recovers the journal.
+         */
+        private final boolean isPrimary;
+
+        /**
+         * Whether the appender has been started; it is never started again once it has stopped.
+         */
+        private boolean submitted = false;
+
+        /**
+         * Thread the appender runs on, null when it is not running; stopped is set by close(), which
+         * may come before the executor gets to run the appender.
+         */
+        private volatile Thread runner;
+        private volatile boolean stopped = false;
+
+        /**
+         * Message queue.
+         */
+        private final LogQueue queue;
+
+        /**
+         * Decides when and how many logs are sent by the socket appender.
+         */
+        private final FlushScheduler scheduler = new FlushScheduler();
+
+        // Formatting constants
+
+        private final LogTransport.Factory transportFactory;
+        private LogTransport transport;
+
+        private boolean logHostName = true;
+        private boolean sendRawLogMessage = false;
+        private boolean printTraceId = false;
+        private boolean printDeviceId = false;
+        private boolean printPriority = false;
+
+        public SocketAppender(int index, int queueSize, long queueBytes, LogTransport.Factory transportFactory,
+                              boolean logHostName, boolean sendRawLogMessage, boolean printTraceId,
+                              boolean printDeviceId, boolean printPriority) {
+            this.name = index == 0 ? "Logentries Socket appender" : "Logentries Socket appender #" + index;
+            this.isPrimary = index == 0;
+            this.queue = new LogQueue(queueSize, queueBytes);
+            this.transportFactory = transportFactory;
+            this.logHostName = logHostName;
+            this.printTraceId = printTraceId;
+            this.printDeviceId = printDeviceId;
+            this.printPriority = printPriority;
+            this.sendRawLogMessage = sendRawLogMessage;
+        }
+
+        /**
+         * Runs the appender on the executor, or on its own thread; called once with the worker's lock held.
+         */
+        void start() {
+            if (submitted) {
+                return;
+            }
+            submitted = true;
+
+            if (executor != null) {
+                executor.execute(this);
+                return;
+            }
+
+            Thread thread = new Thread(this, name);
+            // Don't block shut down
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void interrupt() {
+            stopped = true;
+            Thread thread = runner;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+
+        private void openConnection() throws IOException, InstantiationException {
+            if (transport == null) {
+                transport = transportFactory.createTransport();
+            }
+
+            transport.connect();
+        }
+
+        private boolean reopenConnection(int maxReConnectAttempts) throws InterruptedException, InstantiationException {
+            if (maxReConnectAttempts < 0) {
+                throw new IllegalArgumentException("maxReConnectAttempts value must be greater or equal to zero");
+            }
+
+            // The previous connection is closed (or replaced) by connect() itself.
+            for (int attempt = 0; attempt < maxReConnectAttempts; ++attempt) {
+                try {
+
+                    openConnection();
+                    return true;
+
+                } catch (IOException e) {
+                    // Ignore the exception and go for the next
+                    // iteration.
+                }
+
+                Thread.sleep(RECONNECT_WAIT);
+            }
+
+            return false;
+        }
+
+
+        private void closeConnection() {
+            if (this.transport != null) {
+                this.transport.close();
+            }
+        }
+
+        private void writeBatch(List<LogItem> batch) throws IOException {
+            boolean toJSON = transport.requiresJsonFormat();
+            List<String> lines = new ArrayList<>(batch.size());
+            for (LogItem logItem : batch) {
+                String message = logItem.getMessage();
+                if (message.length() <= LOG_LENGTH_LIMIT) {
+                    lines.add(Utils.formatMessage(logItem.mTag, message, logItem.mPriority, logItem.mTimestamp,
+                            logHostName, toJSON, printTraceId, printDeviceId, deviceId, printPriority));
+                    continue;
+                }
+
+                // Deferred messages are only split here, once they have been rendered.
+                for (String logChunk : Utils.splitStringToChunks(message, LOG_LENGTH_LIMIT)) {
+                    lines.add(Utils.formatMessage(logItem.mTag, logChunk, logItem.mPriority, logItem.mTimestamp,
+                            logHostName, toJSON, printTraceId, printDeviceId, deviceId, printPriority));
+                }
+            }
+            transport.write(lines);
+            transport.flush();
+        }
+
+        private void writeSavedLogs(Queue<LogItem> logs) throws IOException {
+            boolean toJSON = transport.requiresJsonFormat();
+            List<String> lines = new ArrayList<>(logs.size());
+            for (LogItem msg : logs) {
+                if (sendRawLogMessage) {
+                    lines.add(Utils.formatMessage(msg.mTag, msg.getMessage(), msg.mPriority, msg.mTimestamp, logHostName, toJSON, printTraceId, printDeviceId, deviceId, printPriority));
+                } else {
+                    lines.add(msg.getMessage());
+                }
+            }
+            transport.write(lines);
+            transport.flush();
+        }
+
+        /**
+         * Sends the first batch of logs from the local storage over the re-opened connection, to make
+         * sure it works. The rest of them is sent by the main loop, in between the live logs.
+         */
+        private boolean tryUploadSavedLogs() {
+            Queue<LogItem> logs = null;
+            try {
+                logs = localStorage.readLogs(STORAGE_READ_BATCH_SIZE, replayNewestFirst);
+                if (!logs.isEmpty()) {
+                    writeSavedLogs(logs);
+                    for (LogItem msg : logs) {
+                        localStorage.commit(msg); // Move the cursor past the messages after successful sending.
+                    }
+                    localStorage.checkpoint();
+                }
+
+                return true;
+
+            } catch (ThrottledException ex) {
+                // The connection is fine - the rest of the logs is sent by the main loop.
+                int sentCount = ex.getSentCount();
+                for (LogItem msg : logs) {
+                    if (sentCount-- <= 0) {
+                        break;
+                    }
+                    localStorage.commit(msg);
+                }
+                localStorage.checkpoint();
+                onThrottled(ex, logs.size());
+                return true;
+
+            } catch (IOException ioEx) {
+                Diagnostics.e(TAG, "Cannot upload logs to the server. Error: " + ioEx.getMessage());
+
+                // Messages, that haven't been sent yet, stay in the storage - the next upload
+                // resumes from the cursor.
+                localStorage.checkpoint();
+            }
+
+            return false;
+        }
+
+        /**
+         * Holds the appender off for the time the transport has asked for; if it has rejected some of
+         * the logs, the batches get smaller as well.
+         */
+        private void onThrottled(ThrottledException ex, int batchSize) {
+            if (ex.getSentCount() < batchSize) {
+                Diagnostics.e(TAG, "Logs are throttled by the server, will retry in " + ex.getRetryAfter() +
+                        " ms. Error: " + ex.getMessage());
+                scheduler.onThrottled();
+            } else {
+                scheduler.onSent();
+            }
+            scheduler.holdOff(ex.getRetryAfter());
+        }
+
+        /**
+         * Commits the logs of the batch, which the server has accepted before it started throttling,
+         * and puts the rest to the local storage, unless they are from there.
+         */
+        private void requeueThrottledBatch(List<LogItem> batch, int sentCount) {
+            try {
+                for (int i = 0; i < batch.size(); ++i) {
+                    LogItem logItem = batch.get(i);
+                    if (i < sentCount) {
+                        localStorage.commit(logItem);
+                    } else if (logItem.mStorageSegment == null) {
+                        localStorage.putLogToStorage(logItem);
+                    } else {
+                        // Still in the storage - it is read again from the cursor.
+                        continue;
+                    }
+                    commitToJournal(logItem);
+                }
+            } catch (IOException ex) {
+                Diagnostics.e(TAG, "Cannot save the log message to the local storage! Error: " + ex.getMessage());
+            }
+
+            localStorage.checkpoint();
+            batch.clear();
+        }
+
+        /**
+         * Moves the logs, that were queued but not sent when the process had been stopped, from
+         * the journal to the local storage - they are newer than the ones already stored.
+         */
+        private void moveJournalToStorage() {
+            try {
+                for (LogItem logItem : journal.recover()) {
+                    localStorage.putLogToStorage(logItem);
+                    journal.commit(logItem);
+                }
+            } catch (IOException ex) {
+                Diagnostics.e(TAG, "Cannot save logs from the journal to the local storage - they will be recovered " +
+                        "on the next start. Error: " + ex.getMessage());
+            }
+        }
+
+        /**
+         * Does all the start-up work that may block (device properties, DNS, file system access), so
+         * that creating the logger does not stall the caller's thread.
+         */
+        private void initialize() throws IOException {
+            Utils.resolveDeviceMetadata();
+            if (deviceId == null) {
+                deviceId = Utils.getDeviceId(platform);
+            }
+            openLocalStorage();
+            openJournal();
+            journalQueuedLogs();
+        }
+
+        /**
+         * Journals the logs queued before the journal has been opened - each log is journaled before
+         * it is queued otherwise.
+         */
+        private void journalQueuedLogs() {
+            LogJournal journal = AsyncLoggingWorker.this.journal;
+            if (journal == null) {
+                return;
+            }
+            List<LogItem> journaled = new ArrayList<>();
+            for (LogItem logItem : queue) {
+                if (logItem.mJournalEnd < 0 && journal.append(logItem)) {
+                    journaled.add(logItem);
+                }
+            }
+
+            // The overflow policy may have dropped some of them meanwhile, without committing them.
+            Set<LogItem> queued = Collections.newSetFromMap(new IdentityHashMap<LogItem, Boolean>());
+            for (LogItem logItem : queue) {
+                queued.add(logItem);
+            }
+            for (LogItem logItem : journaled) {
+                if (!queued.contains(logItem)) {
+                    journal.commit(logItem);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            runner = Thread.currentThread();
+            try {
+                if (!stopped) {
+                    send();
+                }
+            } finally {
+                runner = null;
+                // A pooled thread must not stay interrupted by close().
+                Thread.interrupted();
+            }
+        }
+
+        private void send() {
+            try {
+
+                initialize();
+
+                // Open connection
+                reopenConnection(MAX_RECONNECT_ATTEMPTS);
+
+                if (journal != null && isPrimary) {
+                    moveJournalToStorage();
+                }
+
+                Queue<LogItem> prevSavedLogs = new ArrayDeque<>();
+
+                int numFailures = 0;
+                boolean connectionIsBroken = false;
+                List<LogItem> batch = new ArrayList<>();
+
+                // Send data in queue
+                while (true) {
+
+                    // Nothing is sent while the transport has asked to wait. A short pause is waited
+                    // out with the logs kept in the queue; during a longer one they are moved to the
+                    // local storage as they arrive, so the queue does not overflow meanwhile.
+                    long holdOff = scheduler.getHoldOff();
+                    if (holdOff > 0) {
+                        if (holdOff <= MAX_QUEUED_HOLD_OFF) {
+                            Thread.sleep(holdOff);
+                        } else if (scheduler.collectBatch(queue, holdOff, batch)) {
+                            requeueThrottledBatch(batch, 0);
+                        }
+                        continue;
+                    }
+
+                    // The logs from the local storage haven't been sent during the last session
+                    // (or while offline). They are read in batches and sent in between the live
+                    // logs, as the scheduler decides; the cursor is persisted when the whole batch
+                    // has been sent.
+                    if (isPrimary && prevSavedLogs.isEmpty() && !connectionIsBroken && localStorage.hasPendingLogs()) {
+                        localStorage.checkpoint();
+                        prevSavedLogs = localStorage.readLogs(STORAGE_READ_BATCH_SIZE, replayNewestFirst);
+                    }
+
+                    if (!prevSavedLogs.isEmpty()) {
+
+                        if (scheduler.isBacklogTurn(!queue.isEmpty())) {
+                            // Getting messages from the previous session.
+                            scheduler.collectBatch(prevSavedLogs, batch);
+                        } else {
+                            // Live logs' turn; if the backlog is paced, wait for live logs until
+                            // the next backlog batch is due.
+                            scheduler.collectBatch(queue, Math.max(1, scheduler.getBacklogDelay()), batch);
+                        }
+
+                    } else {
+
+                        // Take data from the queue if there are no logs from the local storage
+                        // left to send. Park until logs arrive; with the broken connection
+                        // wake up now and then to re-connect and upload the stored logs. The same
+                        // goes for the primary appender when there are others, which may put their
+                        // logs to the storage.
+                        boolean pollStorage = connectionIsBroken || (isPrimary && appenders.length > 1);
+                        scheduler.collectBatch(queue, pollStorage ? BROKEN_CONNECTION_RETRY_INTERVAL : 0, batch);
+
+                    }
+
+                    // Send data, reconnect if needed.
+                    while (true) {
+
+                        try {
+
+                            // If we have broken connection, then try to re-connect and send
+                            // all logs from the local storage (the primary appender only).
+                            // If succeeded - reset numFailures.
+                            if (connectionIsBroken && reopenConnection(MAX_RECONNECT_ATTEMPTS)) {
+                                if (!isPrimary || tryUploadSavedLogs()) {
+                                    connectionIsBroken = false;
+                                    numFailures = 0;
+                                }
+                            }
+
+                            if (!batch.isEmpty()) {
+                                writeBatch(batch);
+                                for (LogItem logItem : batch) {
+                                    commitToJournal(logItem);
+                                    localStorage.commit(logItem);
+                                }
+                                batch.clear();
+                                scheduler.onSent();
+                            }
+
+                        } catch (ThrottledException e) {
+
+                            // The connection is fine, the server just doesn't take more logs for now -
+                            // the rest of the batch is sent again later, from the local storage.
+                            onThrottled(e, batch.size());
+                            requeueThrottledBatch(batch, e.getSentCount());
+                            prevSavedLogs.clear();
+
+                        } catch (IOException e) {
+
+                            if (numFailures >= MAX_NETWORK_FAILURES_ALLOWED) {
+                                connectionIsBroken = true; // Have tried to reconnect for MAX_NETWORK_FAILURES_ALLOWED
+                                // times and failed, so assume, that we have no link to the
+                                // server at all...
+                                // The logs read from the local storage are still there - they are sent
+                                // again from the cursor once the connection is back.
+                                prevSavedLogs.clear();
+                                localStorage.checkpoint();
+                                if (batch.get(0).mStorageSegment != null) {
+                                    batch.clear();
+                                    continue;
+                                }
+
+                                try {
+                                    // ... and put the current messages to the local storage.
+                                    while (!batch.isEmpty()) {
+                                        LogItem logItem = batch.get(0);
+                                        localStorage.putLogToStorage(logItem);
+                                        commitToJournal(logItem);
+                                        batch.remove(0);
+                                    }
+                                } catch (IOException ex) {
+                                    Diagnostics.e(TAG, "Cannot save the log message to the local storage! Error: " +
+                                            ex.getMessage());
+                                }
+
+                            } else {
+                                ++numFailures;
+
+                                // Try to re-open the lost connection.
+                                reopenConnection(MAX_RECONNECT_ATTEMPTS);
+                            }
+
+                            continue;
+                        }
+
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // We got interrupted, stop.
+
+            } catch (IOException e) {
+                Diagnostics.e(TAG, "Cannot open the local storage - the appender is stopped. Error: " + e.getMessage());
+
+            } catch (InstantiationException e) {
+                Diagnostics.e(TAG, "Cannot instantiate the log transport due to improper configuration. Error: " + e.getMessage());
+
+                // Save all existing logs to the local storage.
+                // There is nothing we can do else in this case.
+                LogItem logItem = queue.poll();
+                try {
+                    while (logItem != null) {
+                        localStorage.putLogToStorage(logItem);
+                        commitToJournal(logItem);
+                        logItem = queue.poll();
+                    }
+                } catch (IOException ex) {
+                    Diagnostics.e(TAG, "Cannot save logs queue to the local storage - all log messages will be dropped! Error: " +
+                            e.getMessage());
+                }
+            }
+
+            closeConnection();
+            if (isPrimary && localStorage != null) {
+                // Let another process upload the stored logs.
+                localStorage.close();
+            }
+        }
+    }
+
+    public String getDeviceId() {
+        if (deviceId == null) {
+            // The appender hasn't got to it yet - resolve it here; the value is cached by Utils.
+            deviceId = Utils.getDeviceId(platform);
+        }
+        return deviceId;
+    }
+}
+
@@ -0,0 +1,15 @@
+package com.logentries.logger;
+
+/**
+ * Log message, which is rendered only when it is about to be sent - i.e. on the socket appender's
+ * thread rather than on the caller's one. Whatever the message refers to must not be changed
+ * after it has been logged.
+ * <p>
+ * With the durable queue the message is rendered right away on the caller's thread, since it has to be
+ * written to the journal - so the rendering cost is not deferred then. It is rendered before the journal
+ * is locked, so it does not hold up the other threads' logs.
+ */
+public interface DeferredMessage {
+
+    String render();
+}
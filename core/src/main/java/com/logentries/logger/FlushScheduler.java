@@ -0,0 +1,286 @@
+package com.logentries.logger;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the socket appender sends and how many logs go in one batch.
+ * <p>
+ * When there is nothing to send, the appender is parked until the first log arrives. Then more
+ * logs are collected until the batch is full ({@code maxBatchCount} logs or {@code maxBatchBytes})
+ * or the linger time runs out. The linger time adapts to the arrival rate: if fewer than
+ * {@link #MIN_EXPECTED_ARRIVALS} logs are expected to arrive within {@code maxLinger}, waiting for
+ * them only adds latency, so the batch is sent right away (low-latency mode); otherwise the appender
+ * waits up to {@code maxLinger} to fill the batch (high-batching mode). The rate is the smoothed
+ * one, unless the wait for the first log of the batch shows a lower rate - so the first log after an
+ * idle period is not held back.
+ * <p>
+ * When the server throttles, the batch count limit is halved, and it grows back by one log with each
+ * batch sent - so fewer logs are rejected at once while the server is overloaded. When the transport
+ * asks to wait before sending again, the appender is held off for that time; it still takes the logs
+ * from the queue meanwhile, so the queue does not overflow, but does not send them.
+ * <p>
+ * The backlog from the local storage is sent in between the live logs: while both are waiting,
+ * {@code backlogShare} of the batches are taken from the backlog, so fresh logs wait for at most a
+ * few backlog batches after a long offline period. The backlog can also be limited to
+ * {@code maxBacklogRate} logs per second, leaving the rest of the bandwidth to the live logs.
+ * <p>
+ * The settings may be changed from any thread, batches are collected by the appender's thread only.
+ */
+public class FlushScheduler {
+
+    public static final long DEFAULT_MAX_LINGER = 100; // milliseconds.
+    public static final int DEFAULT_MAX_BATCH_COUNT = 100;
+    public static final int DEFAULT_MAX_BATCH_BYTES = 64 * 1024;
+    public static final double DEFAULT_BACKLOG_SHARE = 0.5;
+
+    /**
+     * Number of logs expected within the linger time, starting from which lingering pays off.
+     */
+    private static final double MIN_EXPECTED_ARRIVALS = 2.0;
+
+    /**
+     * Weight of the most recent batch in the arrival rate average.
+     */
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private volatile long maxLinger = DEFAULT_MAX_LINGER;
+    private volatile int maxBatchCount = DEFAULT_MAX_BATCH_COUNT;
+    private volatile int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+
+    private double arrivalRate = 0; // Logs per millisecond.
+    private double idleArrivalRate = 0;
+    private long lastBatchTime = 0;
+    private long lastBatchEnd = 0;
+    private int lastBatchSize = 0;
+
+    // Max. logs in a batch while throttled by the server; unlimited otherwise.
+    private int throttledBatchCount = Integer.MAX_VALUE;
+
+    private volatile double backlogShare = DEFAULT_BACKLOG_SHARE;
+    private volatile int maxBacklogRate = 0; // Logs per second; 0 means unlimited.
+
+    private double backlogCredit = 0;
+    private long nextBacklogTime = 0;
+
+    private long holdOffUntil = 0;
+
+    public void setMaxLinger(long maxLinger) {
+        if (maxLinger < 0) {
+            throw new IllegalArgumentException("maxLinger must be greater or equal to zero");
+        }
+        this.maxLinger = maxLinger;
+    }
+
+    public long getMaxLinger() {
+        return maxLinger;
+    }
+
+    public void setMaxBatchCount(int maxBatchCount) {
+        if (maxBatchCount <= 0) {
+            throw new IllegalArgumentException("maxBatchCount must be greater than zero");
+        }
+        this.maxBatchCount = maxBatchCount;
+    }
+
+    public int getMaxBatchCount() {
+        return maxBatchCount;
+    }
+
+    public void setMaxBatchBytes(int maxBatchBytes) {
+        if (maxBatchBytes <= 0) {
+            throw new IllegalArgumentException("maxBatchBytes must be greater than zero");
+        }
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    public int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    /**
+     * @param backlogShare share of the batches sent from the backlog while live logs are waiting as well:
+     *                     0 sends the backlog only when there are no live logs, 1 sends the whole backlog
+     *                     first.
+     */
+    public void setBacklogShare(double backlogShare) {
+        if (backlogShare < 0 || backlogShare > 1) {
+            throw new IllegalArgumentException("backlogShare must be between 0 and 1");
+        }
+        this.backlogShare = backlogShare;
+    }
+
+    public double getBacklogShare() {
+        return backlogShare;
+    }
+
+    /**
+     * @param maxBacklogRate max. logs per second sent from the backlog; 0 means unlimited.
+     */
+    public void setMaxBacklogRate(int maxBacklogRate) {
+        if (maxBacklogRate < 0) {
+            throw new IllegalArgumentException("maxBacklogRate must be greater or equal to zero");
+        }
+        this.maxBacklogRate = maxBacklogRate;
+    }
+
+    public int getMaxBacklogRate() {
+        return maxBacklogRate;
+    }
+
+    /**
+     * Decides whether the next batch is taken from the backlog, which has logs ready.
+     *
+     * @param liveWaiting whether there are live logs waiting as well.
+     */
+    public boolean isBacklogTurn(boolean liveWaiting) {
+        if (getBacklogDelay() > 0) {
+            return false;
+        }
+        if (!liveWaiting) {
+            backlogCredit = 0;
+            return true;
+        }
+
+        backlogCredit += backlogShare;
+        if (backlogCredit >= 1) {
+            backlogCredit -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the time in milliseconds until the next backlog batch may be sent under maxBacklogRate.
+     */
+    public long getBacklogDelay() {
+        return maxBacklogRate == 0 ? 0 : Math.max(0, nextBacklogTime - System.currentTimeMillis());
+    }
+
+    /**
+     * Waits for logs in the queue and collects the next batch of them.
+     *
+     * @param idleTimeout max. time in milliseconds to wait for the first log; zero means to wait
+     *                    until a log arrives.
+     * @return false if no logs have arrived within idleTimeout.
+     */
+    public boolean collectBatch(BlockingQueue<LogItem> queue, long idleTimeout,
+                                List<LogItem> batch) throws InterruptedException {
+        LogItem logItem = idleTimeout == 0 ? queue.take() : queue.poll(idleTimeout, TimeUnit.MILLISECONDS);
+        if (logItem == null) {
+            return false;
+        }
+
+        int batchCount = Math.min(maxBatchCount, throttledBatchCount);
+        int batchBytes = maxBatchBytes;
+        long now = System.currentTimeMillis();
+        updateArrivalRate(now);
+        long deadline = now + currentLinger();
+
+        batch.add(logItem);
+        int bytes = sizeOf(logItem);
+        while (batch.size() < batchCount && bytes < batchBytes) {
+            logItem = queue.poll();
+            if (logItem == null) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                logItem = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                if (logItem == null) {
+                    break;
+                }
+            }
+            batch.add(logItem);
+            bytes += sizeOf(logItem);
+        }
+
+        lastBatchSize = batch.size();
+        lastBatchEnd = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Collects the next batch from already available logs (e.g. the ones from the local storage).
+     */
+    public void collectBatch(Queue<LogItem> source, List<LogItem> batch) {
+        int batchCount = Math.min(maxBatchCount, throttledBatchCount);
+        int batchBytes = maxBatchBytes;
+        int backlogRate = maxBacklogRate;
+        if (backlogRate > 0) {
+            batchCount = Math.min(batchCount, backlogRate);
+        }
+
+        int bytes = 0;
+        while (batch.size() < batchCount && bytes < batchBytes && !source.isEmpty()) {
+            LogItem logItem = source.poll();
+            batch.add(logItem);
+            bytes += sizeOf(logItem);
+        }
+
+        if (backlogRate > 0) {
+            long now = System.currentTimeMillis();
+            nextBacklogTime = Math.max(now, nextBacklogTime) + batch.size() * 1000L / backlogRate;
+        }
+    }
+
+    /**
+     * Called when the server has throttled a batch - halves the batch count limit.
+     */
+    public void onThrottled() {
+        throttledBatchCount = Math.max(1, Math.min(maxBatchCount, throttledBatchCount) / 2);
+    }
+
+    /**
+     * Called when the transport has asked to wait before sending again - nothing is sent for the given
+     * time in milliseconds.
+     */
+    public void holdOff(long delay) {
+        holdOffUntil = Math.max(holdOffUntil, System.currentTimeMillis() + delay);
+    }
+
+    /**
+     * Returns the time in milliseconds until the appender may send again.
+     */
+    public long getHoldOff() {
+        return Math.max(0, holdOffUntil - System.currentTimeMillis());
+    }
+
+    /**
+     * Called when a batch has been sent - the batch count limit grows back by one.
+     */
+    public void onSent() {
+        if (throttledBatchCount != Integer.MAX_VALUE) {
+            ++throttledBatchCount;
+            if (throttledBatchCount >= maxBatchCount) {
+                throttledBatchCount = Integer.MAX_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Linger time for the next batch in milliseconds, according to the recent arrival rate.
+     */
+    long currentLinger() {
+        long linger = maxLinger;
+        return Math.min(arrivalRate, idleArrivalRate) * linger >= MIN_EXPECTED_ARRIVALS ? linger : 0;
+    }
+
+    /**
+     * Accounts the logs of the previous batch over the time since it has been started, and the
+     * first log of the new batch over the time the appender has waited for it.
+     */
+    private void updateArrivalRate(long now) {
+        if (lastBatchTime > 0) {
+            arrivalRate += RATE_SMOOTHING * ((double) lastBatchSize / Math.max(1, now - lastBatchTime) - arrivalRate);
+            idleArrivalRate = 1.0 / Math.max(1, now - lastBatchEnd);
+        }
+        lastBatchTime = now;
+    }
+
+    private static int sizeOf(LogItem logItem) {
+        return logItem.getMessage().length() + (logItem.mTag == null ? 0 : logItem.mTag.length());
+    }
+}
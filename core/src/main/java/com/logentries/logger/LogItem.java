@@ -0,0 +1,125 @@
+package com.logentries.logger;
+
+/**
+ * A log message with its priority, tag and time, as it goes through the queue, the journal and the
+ * local storage.
+ */
+class LogItem {
+
+    private static final String LINE_SEP_REPLACER = "\u2028";
+
+    // The item and the String objects of the tag and the message, without the characters.
+    private static final int ITEM_OVERHEAD = 48 + 2 * 40;
+
+    // Estimated size of a deferred message (with whatever it refers to) before it is rendered.
+    private static final int DEFERRED_MESSAGE_SIZE = 1024;
+
+    public final int mPriority;
+    public final String mTag;
+    public final long mTimestamp;
+
+    /**
+     * The message; null until the deferred message has been rendered. Both are volatile for
+     * {@link #peekMessage()} - the message is set before the deferred one is cleared.
+     */
+    private volatile String mMessage;
+    private volatile DeferredMessage mDeferredMessage;
+
+    /**
+     * End position of the item's record in the {@link LogJournal}, -1 if the item is not journaled.
+     */
+    long mJournalEnd = -1;
+    boolean mJournalCommitted = false;
+
+    /**
+     * Segment, end offset and number of the item's record in the {@link LogStorage}; null and -1
+     * if the item has not been read from the storage.
+     */
+    LogStorage.SegmentId mStorageSegment = null;
+    long mStorageEnd = -1;
+    int mStorageRecord = -1;
+
+    /**
+     * Size the item has been accounted with in the {@link LogQueue}.
+     */
+    int mQueuedSize = 0;
+
+    public LogItem(int priority, String tag, String message) {
+        this(priority, tag, message, System.currentTimeMillis());
+    }
+
+    public LogItem(int priority, String tag, String message, long timestamp) {
+        mPriority = priority;
+        mTimestamp = timestamp;
+        mTag = tag.replace("\n", LINE_SEP_REPLACER).replace(";", "");
+        mMessage = message.replace("\n", LINE_SEP_REPLACER);
+    }
+
+    public LogItem(String priority, String tag, String message) throws NumberFormatException {
+        this(Integer.parseInt(priority), tag, message);
+    }
+
+    public LogItem(int priority, String tag, DeferredMessage message) {
+        mPriority = priority;
+        mTimestamp = System.currentTimeMillis();
+        mTag = tag.replace("\n", LINE_SEP_REPLACER).replace(";", "");
+        mDeferredMessage = message;
+    }
+
+    /**
+     * Returns the message, rendering the deferred one on the first call.
+     */
+    public String getMessage() {
+        String message = mMessage;
+        if (message == null) {
+            try {
+                message = mDeferredMessage.render();
+            } catch (RuntimeException ex) {
+                message = "Cannot render the log message. Error: " + ex;
+            }
+            message = String.valueOf(message).replace("\n", LINE_SEP_REPLACER);
+            // Published before the deferred message is cleared, see peekMessage().
+            mMessage = message;
+            mDeferredMessage = null;
+        }
+        return message;
+    }
+
+    /**
+     * Returns the message for a copy of the item taken on another thread than the socket appender's
+     * (e.g. for a crash report). A deferred message not yet rendered by the appender is rendered
+     * here without being cached - and a stack trace without being counted as sent.
+     */
+    String peekMessage() {
+        DeferredMessage deferredMessage = mDeferredMessage;
+        if (deferredMessage == null) {
+            // Never deferred, or rendered by the appender - the message has been set before.
+            return mMessage;
+        }
+
+        String message = mMessage;
+        if (message != null) {
+            return message;
+        }
+
+        try {
+            message = deferredMessage instanceof ThrowableMessage ?
+                    ((ThrowableMessage) deferredMessage).renderFullTrace() : deferredMessage.render();
+        } catch (RuntimeException ex) {
+            message = "Cannot render the log message. Error: " + ex;
+        }
+        return String.valueOf(message).replace("\n", LINE_SEP_REPLACER);
+    }
+
+    /**
+     * Returns the estimated size of the item on the heap in bytes.
+     */
+    int getSize() {
+        int chars = mTag.length();
+        String message = mMessage;
+        if (message == null) {
+            return ITEM_OVERHEAD + 2 * chars + DEFERRED_MESSAGE_SIZE;
+        }
+        return ITEM_OVERHEAD + 2 * (chars + message.length());
+    }
+}
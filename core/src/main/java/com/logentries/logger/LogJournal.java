@@ -0,0 +1,266 @@
+package com.logentries.logger;
+
+import com.logentries.misc.Diagnostics;
+import com.logentries.misc.Platform;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+
+/**
+ * Crash-safe copy of the in-memory log queue, kept in a memory-mapped ring file.
+ * <p>
+ * Appending a record is a plain memory copy into the mapping - the pages belong to the kernel,
+ * so they are written to the file even if the process gets killed right after. The socket appender
+ * commits records once they have been sent (or moved to the {@link LogStorage}), and everything
+ * between the committed and the written position is recovered on the next start.
+ * <p>
+ * File layout: a header with the magic number, the version and the read/write positions, followed
+ * by the data area. Positions are logical (they only grow), the offset in the data area is the position
+ * modulo its size. Each record is [int length][long timestamp][int priority][int tag length][tag][message],
+ * records never wrap - if a record does not fit to the end of the data area, a wrap marker is written
+ * and the record goes to the beginning.
+ * <p>
+ * Records may be committed in any order (e.g. by several socket appenders); the read position only
+ * moves past the records, which have all been committed. Corrupted records of the previous session are
+ * skipped together with the rest of it, once the readable ones before them have been committed.
+ */
+public class LogJournal {
+
+    private static final String TAG = "LogentriesAndroidLogger";
+    private static final String JOURNAL_FILE_NAME = "LogentriesLogJournal.dat";
+    private static final String JOURNAL_FILE_PREFIX = "LogentriesLogJournal.";
+    private static final String JOURNAL_FILE_SUFFIX = ".dat";
+    private static final int JOURNAL_SIZE = 2 * 1024 * 1024; // 2 MBytes.
+
+    private static final int MAGIC = 0x4C454A31; // "LEJ1"
+    private static final int VERSION = 1;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int READ_POS_OFFSET = 8;
+    private static final int WRITE_POS_OFFSET = 16;
+    private static final int HEADER_SIZE = 24;
+
+    private static final int DATA_SIZE = JOURNAL_SIZE - HEADER_SIZE;
+    private static final int WRAP_MARKER = -1;
+
+    // Length field + timestamp + priority + tag length.
+    private static final int RECORD_OVERHEAD = 4 + 8 + 4 + 4;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final MappedByteBuffer buffer;
+
+    private long readPos;
+    private long writePos;
+
+    /**
+     * Write position at the moment the journal has been opened - records before it are the ones
+     * left from the previous session.
+     */
+    private final long recoveryEnd;
+
+    /**
+     * End of the readable part of the previous session's records - before recoveryEnd, if the rest of
+     * them turns out to be corrupted.
+     */
+    private long recoverableEnd;
+
+    /**
+     * Items appended in this session and not yet passed by the read position, in the journal order.
+     */
+    private final Deque<LogItem> outstanding = new ArrayDeque<>();
+
+    /**
+     * End position of the last record of this session, up to which all records have been committed.
+     */
+    private long liveCommitPos;
+
+    public LogJournal(Platform platform) throws IOException {
+        this(new File(platform.getFilesDir(), getJournalFileName(platform.getProcessKey())));
+    }
+
+    /**
+     * Each process has its own journal - the journal of the main process keeps the original name.
+     */
+    static String getJournalFileName(String process) {
+        return process.isEmpty() ? JOURNAL_FILE_NAME : JOURNAL_FILE_PREFIX + process + JOURNAL_FILE_SUFFIX;
+    }
+
+    LogJournal(File journalFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try {
+            file.setLength(JOURNAL_SIZE);
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, JOURNAL_SIZE);
+        } finally {
+            // The mapping stays valid after the channel is closed.
+            file.close();
+        }
+
+        if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(VERSION_OFFSET) != VERSION) {
+            reset();
+        } else {
+            readPos = buffer.getLong(READ_POS_OFFSET);
+            writePos = buffer.getLong(WRITE_POS_OFFSET);
+            if (readPos < 0 || writePos < readPos || writePos - readPos > DATA_SIZE) {
+                Diagnostics.e(TAG, "Log journal is corrupted - it will be cleared.");
+                reset();
+            }
+        }
+        recoveryEnd = writePos;
+        recoverableEnd = writePos;
+        liveCommitPos = writePos;
+    }
+
+    /**
+     * Appends the item to the journal and stores its end position in the item.
+     *
+     * @return false if there is not enough free space in the journal - the item is not persisted then.
+     */
+    public boolean append(LogItem logItem) {
+        // The message (a deferred one is rendered here) is encoded before the journal is locked.
+        byte[] tag = logItem.mTag == null ? new byte[0] : logItem.mTag.getBytes(UTF8);
+        byte[] message = logItem.getMessage().getBytes(UTF8);
+        return write(logItem, tag, message);
+    }
+
+    private synchronized boolean write(LogItem logItem, byte[] tag, byte[] message) {
+        int length = RECORD_OVERHEAD + tag.length + message.length;
+
+        long start = writePos;
+        int offset = offsetOf(start);
+        int tail = DATA_SIZE - offset;
+        if (tail < length) {
+            // The record goes to the beginning of the data area, the tail is skipped.
+            start += tail;
+        }
+        if (start + length - readPos > DATA_SIZE) {
+            return false;
+        }
+
+        if (start != writePos && tail >= 4) {
+            buffer.putInt(HEADER_SIZE + offset, WRAP_MARKER);
+        }
+
+        buffer.position(HEADER_SIZE + offsetOf(start));
+        buffer.putInt(length);
+        buffer.putLong(logItem.mTimestamp);
+        buffer.putInt(logItem.mPriority);
+        buffer.putInt(tag.length);
+        buffer.put(tag);
+        buffer.put(message);
+
+        // Publish the record only after it has been completely written.
+        writePos = start + length;
+        buffer.putLong(WRITE_POS_OFFSET, writePos);
+        logItem.mJournalEnd = writePos;
+        outstanding.offer(logItem);
+
+        return true;
+    }
+
+    /**
+     * Marks the item's record as consumed. Records of the previous session are recovered and committed
+     * in order, so committing one of them also commits all the earlier ones.
+     */
+    public synchronized void commit(LogItem logItem) {
+        if (logItem.mJournalEnd < 0) {
+            return;
+        }
+
+        long newReadPos = readPos;
+        if (logItem.mJournalEnd <= recoveryEnd) {
+            newReadPos = Math.max(readPos, logItem.mJournalEnd);
+        } else {
+            logItem.mJournalCommitted = true;
+            while (!outstanding.isEmpty() && outstanding.peek().mJournalCommitted) {
+                liveCommitPos = outstanding.poll().mJournalEnd;
+            }
+        }
+
+        // Records of this session are passed only when the previous session's ones have been recovered.
+        if (newReadPos >= recoverableEnd) {
+            newReadPos = liveCommitPos;
+        }
+        moveReadPos(newReadPos);
+    }
+
+    /**
+     * Reads all records of the previous session that have been appended, but not committed - i.e.
+     * the logs that were still in flight when the process had been stopped.
+     */
+    public synchronized Queue<LogItem> recover() {
+        Queue<LogItem> logs = new ArrayDeque<>();
+
+        long pos = readPos;
+        while (pos < recoveryEnd) {
+            int offset = offsetOf(pos);
+            int tail = DATA_SIZE - offset;
+            if (tail < 4 || buffer.getInt(HEADER_SIZE + offset) == WRAP_MARKER) {
+                pos += tail;
+                continue;
+            }
+
+            buffer.position(HEADER_SIZE + offset);
+            int length = buffer.getInt();
+            if (length < RECORD_OVERHEAD || length > tail || pos + length > recoveryEnd) {
+                Diagnostics.e(TAG, "Log journal is corrupted - " + (recoveryEnd - pos) + " bytes of logs are dropped.");
+                recoverableEnd = pos;
+                break;
+            }
+
+            long timestamp = buffer.getLong();
+            int priority = buffer.getInt();
+            int tagLength = buffer.getInt();
+            if (tagLength < 0 || tagLength > length - RECORD_OVERHEAD) {
+                Diagnostics.e(TAG, "Log journal is corrupted - " + (recoveryEnd - pos) + " bytes of logs are dropped.");
+                recoverableEnd = pos;
+                break;
+            }
+            byte[] tag = new byte[tagLength];
+            byte[] message = new byte[length - RECORD_OVERHEAD - tagLength];
+            buffer.get(tag);
+            buffer.get(message);
+
+            pos += length;
+            LogItem logItem = new LogItem(priority, new String(tag, UTF8),
+                    new String(message, UTF8), timestamp);
+            logItem.mJournalEnd = pos;
+            logs.offer(logItem);
+        }
+
+        // The corrupted records are skipped once the readable ones have been committed - right away,
+        // if there are none.
+        if (readPos >= recoverableEnd) {
+            moveReadPos(liveCommitPos);
+        }
+        return logs;
+    }
+
+    private void moveReadPos(long newReadPos) {
+        if (newReadPos > readPos) {
+            readPos = newReadPos;
+            buffer.putLong(READ_POS_OFFSET, readPos);
+        }
+    }
+
+    private void reset() {
+        readPos = 0;
+        writePos = 0;
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putLong(READ_POS_OFFSET, readPos);
+        buffer.putLong(WRITE_POS_OFFSET, writePos);
+    }
+
+    private static int offsetOf(long pos) {
+        return (int) (pos % DATA_SIZE);
+    }
+}
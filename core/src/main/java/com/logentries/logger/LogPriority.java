@@ -0,0 +1,18 @@
+package com.logentries.logger;
+
+/**
+ * Priorities of log messages - the same values as the levels of android.util.Log, so on Android
+ * either can be used.
+ */
+public final class LogPriority {
+
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int ASSERT = 7;
+
+    private LogPriority() {
+    }
+}
@@ -0,0 +1,337 @@
+package com.logentries.logger;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue of a socket appender, bounded both by the number of logs and by their size in bytes - so a burst
+ * of big messages cannot exhaust the heap. The size of a log is estimated when it is queued (see
+ * {@link LogItem#getSize()}) and released when it is taken out.
+ * <p>
+ * A log bigger than the whole byte budget is still taken when the queue is empty, so it is not
+ * rejected forever; the same goes for the logs queued at once with {@link #offerAll(List)} - one after
+ * another, and either all of them or none - as long as they are no more than the capacity. The iterator
+ * is a snapshot - removing through it removes the log from the queue, if it is still there.
+ */
+class LogQueue extends AbstractQueue<LogItem> implements BlockingQueue<LogItem> {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private final ArrayDeque<LogItem> items;
+    private final int capacity;
+    private long maxBytes;
+
+    // Written under the lock; read without it for the stats.
+    private volatile long bytes = 0;
+
+    LogQueue(int capacity, long maxBytes) {
+        this.items = new ArrayDeque<>(Math.min(capacity, 1024));
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+    }
+
+    void setMaxBytes(long maxBytes) {
+        lock.lock();
+        try {
+            this.maxBytes = maxBytes;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the estimated size of the queued logs in bytes.
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public boolean offer(LogItem logItem) {
+        int size = logItem.getSize();
+        lock.lock();
+        try {
+            if (!hasRoom(size)) {
+                return false;
+            }
+            enqueue(logItem, size);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(LogItem logItem, long timeout, TimeUnit unit) throws InterruptedException {
+        int size = logItem.getSize();
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (!hasRoom(size)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(logItem, size);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(LogItem logItem) throws InterruptedException {
+        int size = logItem.getSize();
+        lock.lockInterruptibly();
+        try {
+            while (!hasRoom(size)) {
+                notFull.await();
+            }
+            enqueue(logItem, size);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues all the items one after another, or none of them if there is not enough space for all.
+     */
+    boolean offerAll(List<LogItem> logItems) {
+        long size = sizeOf(logItems);
+        lock.lock();
+        try {
+            if (!hasRoom(logItems.size(), size)) {
+                return false;
+            }
+            enqueueAll(logItems);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Same as {@link #offerAll(List)}, waiting for the space for all the items up to the timeout.
+     */
+    boolean offerAll(List<LogItem> logItems, long timeout, TimeUnit unit) throws InterruptedException {
+        long size = sizeOf(logItems);
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (!hasRoom(logItems.size(), size)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueueAll(logItems);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public LogItem poll() {
+        lock.lock();
+        try {
+            return items.isEmpty() ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public LogItem poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (items.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public LogItem take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (items.isEmpty()) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public LogItem peek() {
+        lock.lock();
+        try {
+            return items.peekFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            // Logs are compared by identity.
+            if (!items.removeFirstOccurrence(o)) {
+                return false;
+            }
+            release((LogItem) o);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<LogItem> iterator() {
+        final Iterator<LogItem> snapshot;
+        lock.lock();
+        try {
+            snapshot = new ArrayList<>(items).iterator();
+        } finally {
+            lock.unlock();
+        }
+
+        return new Iterator<LogItem>() {
+            private LogItem last;
+
+            @Override
+            public boolean hasNext() {
+                return snapshot.hasNext();
+            }
+
+            @Override
+            public LogItem next() {
+                last = snapshot.next();
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                LogQueue.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+    @Override
+    public int drainTo(Collection<? super LogItem> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super LogItem> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+
+        lock.lock();
+        try {
+            int count = 0;
+            while (count < maxElements && !items.isEmpty()) {
+                c.add(dequeue());
+                ++count;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean hasRoom(int size) {
+        return hasRoom(1, size);
+    }
+
+    private boolean hasRoom(int count, long size) {
+        return items.size() + count <= capacity && (items.isEmpty() || bytes + size <= maxBytes);
+    }
+
+    private void enqueue(LogItem logItem, int size) {
+        logItem.mQueuedSize = size;
+        items.addLast(logItem);
+        bytes += size;
+        notEmpty.signal();
+    }
+
+    private void enqueueAll(List<LogItem> logItems) {
+        for (LogItem logItem : logItems) {
+            int size = logItem.mQueuedSize;
+            items.addLast(logItem);
+            bytes += size;
+        }
+        // One waiting appender takes them all.
+        notEmpty.signal();
+    }
+
+    /**
+     * Returns the size of the items, and stores the size of each in it.
+     */
+    private static long sizeOf(List<LogItem> logItems) {
+        long size = 0;
+        for (LogItem logItem : logItems) {
+            logItem.mQueuedSize = logItem.getSize();
+            size += logItem.mQueuedSize;
+        }
+        return size;
+    }
+
+    private LogItem dequeue() {
+        LogItem logItem = items.removeFirst();
+        release(logItem);
+        return logItem;
+    }
+
+    private void release(LogItem logItem) {
+        bytes -= logItem.mQueuedSize;
+        // The freed bytes may be enough for several waiting logs, or for none of them.
+        notFull.signalAll();
+    }
+}
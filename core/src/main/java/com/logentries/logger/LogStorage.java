@@ -0,0 +1,1463 @@
+package com.logentries.logger;
+
+import com.logentries.misc.Diagnostics;
+import com.logentries.misc.Platform;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Local storage for the logs that could not be sent, shared by all processes of the app.
+ * <p>
+ * Each process appends its logs to its own segment files of limited size, and holds an exclusive
+ * file lock on the segment it is appending to - a segment that can be locked by someone else is
+ * sealed, i.e. it won't grow any more. One of the processes is elected as the uploader by locking the
+ * lock file; it reads the segments of all processes, and the others only write. If the uploader
+ * process dies, its lock is released and another process takes over.
+ * <p>
+ * For each segment being consumed, a persisted cursor (offset) points to the first of its records that
+ * hasn't been sent yet; it is advanced by {@link #commit(LogItem)} after a record
+ * has been sent and written to disk by {@link #checkpoint()}. Failed uploads simply resume from the
+ * cursors, and sealed segments are deleted as soon as they have been consumed. The segments are
+ * consumed independently, so the logs may be replayed oldest or newest segment first.
+ * <p>
+ * Each process also keeps an index of its segments next to them - the number of records, the size and
+ * the first and last timestamps of each segment. The entry of the segment being appended to is updated
+ * in place with each record, so neither the startup nor {@link #getBacklog()} has to read the logs:
+ * only the last segment of the process is validated on startup, in case the process has been killed
+ * while appending to it.
+ * <p>
+ * A segment starts with [int magic][int version], followed by the records:
+ * [int length][int CRC32][long timestamp][short tag id][message]. The tag id refers to a priority and
+ * a tag in the segment's dictionary: the first record using it has the high bit of the id set and the
+ * entry right after it - [int priority][int tag length][tag]. So a tag is stored once per segment, and
+ * its string is decoded once by the uploader, which keeps the dictionaries of the segments it reads.
+ * <p>
+ * Records of the version 1 segments have [int priority][int tag length][tag] instead of the tag id.
+ * Segments written by the previous versions have neither the header, nor the checksums.
+ */
+public class LogStorage {
+
+    private static final String TAG = "LogentriesAndroidLogger";
+    private static final String LEGACY_STORAGE_FILE_NAME = "LogentriesLogStorage.log";
+    private static final String SEGMENT_FILE_PREFIX = "LogentriesLogStorage.";
+    private static final String SEGMENT_FILE_SUFFIX = ".seg";
+    private static final String INDEX_FILE_NAME = "LogentriesLogStorage";
+    private static final String INDEX_FILE_SUFFIX = ".idx";
+    private static final String NEW_FILE_SUFFIX = ".new";
+    private static final String CURSOR_FILE_NAME = "LogentriesLogStorage.cursor";
+    private static final String LOCK_FILE_NAME = "LogentriesLogStorage.lock";
+    private static final long MAX_QUEUE_FILE_SIZE = 10 * 1024 * 1024; // 10 MBytes per process.
+    private static final long MAX_SEGMENT_SIZE = 1024 * 1024; // 1 MByte.
+
+    // How often a non-uploader tries to become the uploader, and the uploader looks for new segments.
+    private static final long ELECTION_INTERVAL = 5000; // milliseconds.
+    private static final long REFRESH_INTERVAL = 1000; // milliseconds.
+
+    private static final int SEGMENT_MAGIC = 0x4C455332; // "LES2"
+    private static final int SEGMENT_VERSION = 2;
+    private static final int SEGMENT_HEADER_SIZE = 4 + 4;
+
+    // Timestamp + tag id.
+    private static final int RECORD_HEADER_SIZE = 8 + 2;
+    // Timestamp + priority + tag length, in the version 1 segments and before.
+    private static final int LEGACY_RECORD_HEADER_SIZE = 8 + 4 + 4;
+    private static final int MAX_RECORD_SIZE = (int) MAX_SEGMENT_SIZE;
+
+    // Priority + tag length of a dictionary entry, which follows the tag id with the high bit set.
+    private static final int TAG_ENTRY_SIZE = 4 + 4;
+    private static final int NEW_TAG_FLAG = 0x8000;
+    private static final int MAX_TAG_COUNT = NEW_TAG_FLAG;
+
+    private static final int INDEX_MAGIC = 0x4C454931; // "LEI1"
+    private static final int INDEX_HEADER_SIZE = 4;
+    // Sequence number + size + record count + header size + first and last timestamps + CRC32.
+    private static final int INDEX_ENTRY_SIZE = 8 + 8 + 4 + 4 + 8 + 8 + 4;
+
+    // Mark the cursor file formats: per process with the record counts, and per segment.
+    private static final int PROCESS_CURSOR_FORMAT_MARKER = -1;
+    private static final int SEGMENT_CURSOR_FORMAT_MARKER = -2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File storageDir;
+
+    /**
+     * Key of this process in the file names - empty for the main process.
+     */
+    private final String process;
+
+    /**
+     * Segments of this process with their stats. Segments from the previous sessions are never
+     * appended to, so that a torn record can only be at the end of a sealed segment.
+     */
+    private final TreeMap<SegmentId, SegmentStats> ownSegments = new TreeMap<>();
+    private long ownSize = 0;
+
+    /**
+     * Segment, which new logs are appended to; null if it hasn't been opened in this session.
+     */
+    private SegmentId activeSegment = null;
+    private SegmentStats activeStats = null;
+    private FileOutputStream activeWriter = null;
+    private FileLock activeLock = null;
+
+    /**
+     * Dictionary of the active segment - the ids of the tags written to it.
+     */
+    private final Map<TagEntry, Integer> activeTags = new HashMap<>();
+
+    /**
+     * Index of this process' segments, and the position of the active segment's entry in it.
+     */
+    private RandomAccessFile indexWriter = null;
+    private long activeIndexEntry = -1;
+
+    /**
+     * Segments of all processes with their stats - maintained by the uploader only.
+     */
+    private final TreeMap<SegmentId, SegmentStats> segments = new TreeMap<>();
+    private long lastRefresh = 0;
+
+    /**
+     * Cursors of the segments, which have been consumed partially - maintained by the uploader only.
+     */
+    private final Map<SegmentId, Cursor> cursors = new HashMap<>();
+    private boolean cursorChanged = false;
+
+    /**
+     * Dictionaries of the segments, which have been read - maintained by the uploader only.
+     */
+    private final Map<SegmentId, TagDictionary> dictionaries = new HashMap<>();
+
+    private RandomAccessFile lockFile = null;
+    private FileLock uploaderLock = null;
+    private long lastElection = 0;
+
+    private final Pattern pattern;
+
+    public LogStorage(Platform platform) throws IOException {
+        this(platform.getFilesDir(), platform.getProcessKey());
+    }
+
+    LogStorage(File storageDir, String process) throws IOException {
+        this.storageDir = storageDir;
+        this.process = process;
+        this.pattern = Pattern.compile("([0-9]+);([^;]*);(.*)");
+        loadOwnSegments();
+        tryBecomeUploader();
+    }
+
+    public synchronized void putLogToStorage(LogItem logItem) throws IOException, RuntimeException {
+        TagEntry tagEntry = new TagEntry(logItem.mPriority, logItem.mTag == null ? "" : logItem.mTag);
+        byte[] message = logItem.getMessage().getBytes(UTF8);
+
+        // The tag is written only if it is new to the segment.
+        Integer tagId = activeWriter != null ? activeTags.get(tagEntry) : null;
+        byte[] tag = tagId == null ? tagEntry.tag.getBytes(UTF8) : null;
+        int length = recordLength(tag, message);
+        if (length > MAX_RECORD_SIZE) {
+            throw new IOException("The log message is too long to be stored: " + length + " bytes");
+        }
+
+        if (activeWriter == null || activeStats.bytes + 4 + 4 + length > MAX_SEGMENT_SIZE ||
+                tagId == null && activeTags.size() >= MAX_TAG_COUNT) {
+            openNewSegment();
+            if (tagId != null) {
+                tagId = null;
+                tag = tagEntry.tag.getBytes(UTF8);
+                length = recordLength(tag, message);
+                if (length > MAX_RECORD_SIZE) {
+                    throw new IOException("The log message is too long to be stored: " + length + " bytes");
+                }
+            }
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(4 + 4 + length);
+        record.putInt(length);
+        record.putInt(0); // The checksum, filled in below.
+        record.putLong(logItem.mTimestamp);
+        if (tagId != null) {
+            record.putShort((short) (int) tagId);
+        } else {
+            record.putShort((short) (activeTags.size() | NEW_TAG_FLAG));
+            record.putInt(tagEntry.priority);
+            record.putInt(tag.length);
+            record.put(tag);
+        }
+        record.put(message);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, length);
+        record.putInt(4, (int) crc.getValue());
+
+        if (ownSize + record.capacity() >= MAX_QUEUE_FILE_SIZE) {
+            Diagnostics.d(TAG, "Oldest logs will be removed from the storage because threshold of " + MAX_QUEUE_FILE_SIZE +
+                    " bytes has been reached");
+            boolean removed = false;
+            while (ownSize + record.capacity() >= MAX_QUEUE_FILE_SIZE && !ownSegments.firstKey().equals(activeSegment)) {
+                removeSegment(ownSegments.firstKey());
+                removed = true;
+            }
+            if (removed) {
+                writeIndex();
+            }
+        }
+
+        activeWriter.write(record.array());
+        if (tagId == null) {
+            activeTags.put(tagEntry, activeTags.size());
+        }
+        activeStats.add(record.capacity(), logItem.mTimestamp);
+        ownSize += record.capacity();
+        updateActiveIndexEntry();
+    }
+
+    private static int recordLength(byte[] newTag, byte[] message) {
+        return RECORD_HEADER_SIZE + (newTag != null ? TAG_ENTRY_SIZE + newTag.length : 0) + message.length;
+    }
+
+    /**
+     * Reads up to maxCount logs, starting from the cursors. The cursors are not moved - the logs
+     * must be committed one by one once they have been sent. Returns nothing unless this process
+     * is the uploader.
+     */
+    public synchronized Queue<LogItem> readLogs(int maxCount) {
+        return readLogs(maxCount, false);
+    }
+
+    /**
+     * Same as {@link #readLogs(int)}, optionally starting with the newest segment. Logs are still in
+     * their order within a segment, so the newest ones come first only roughly.
+     */
+    public synchronized Queue<LogItem> readLogs(int maxCount, boolean newestFirst) {
+        Queue<LogItem> logs = new ArrayDeque<>();
+        if (!tryBecomeUploader()) {
+            return logs;
+        }
+        refreshSegments(false);
+
+        for (SegmentId segment : new ArrayList<>(newestFirst ? segments.descendingKeySet() : segments.keySet())) {
+            if (logs.size() >= maxCount) {
+                break;
+            }
+
+            long offset = 0;
+            int record = 0;
+            Cursor cursor = cursors.get(segment);
+            if (cursor != null) {
+                offset = cursor.offset;
+                record = cursor.records;
+            }
+
+            int readBefore = logs.size();
+            if (!readSegment(segment, offset, record, maxCount, logs)) {
+                if (!isSealed(segment)) {
+                    // The record is still being written - the rest of the segment is read later.
+                    continue;
+                }
+                if (logs.size() > readBefore) {
+                    // Give out the readable part first; the rest is dropped on the next read.
+                    break;
+                }
+
+                // The rest of the segment is not readable - skip it, so it doesn't block the upload.
+                Diagnostics.e(TAG, "Part of the local storage is corrupted - " + (segments.get(segment).bytes - offset) +
+                        " bytes of logs are dropped.");
+                removeSegment(segment);
+            }
+        }
+
+        return logs;
+    }
+
+    /**
+     * Moves the cursor of the log's segment past the given log, which has been read by
+     * {@link #readLogs(int)}. Sealed segments that have been consumed completely are removed.
+     */
+    public synchronized void commit(LogItem logItem) {
+        if (logItem.mStorageSegment == null || uploaderLock == null) {
+            return;
+        }
+
+        SegmentId segment = logItem.mStorageSegment;
+        Cursor cursor = cursors.get(segment);
+        if (cursor != null && cursor.offset >= logItem.mStorageEnd) {
+            return; // Committed already.
+        }
+        cursors.put(segment, new Cursor(segment, logItem.mStorageEnd, logItem.mStorageRecord + 1));
+        cursorChanged = true;
+
+        SegmentStats stats = segments.get(segment);
+        if (stats != null && logItem.mStorageEnd >= stats.bytes && isSealed(segment)) {
+            removeSegment(segment);
+            if (segment.process.equals(process)) {
+                writeIndex();
+            }
+        }
+    }
+
+    /**
+     * Persists the cursors, if they have been moved since the last checkpoint.
+     */
+    public synchronized void checkpoint() {
+        if (!cursorChanged || uploaderLock == null) {
+            return;
+        }
+
+        File cursorFile = new File(storageDir, CURSOR_FILE_NAME);
+        File newCursorFile = new File(storageDir, CURSOR_FILE_NAME + NEW_FILE_SUFFIX);
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new FileOutputStream(newCursorFile));
+            output.writeInt(SEGMENT_CURSOR_FORMAT_MARKER);
+            output.writeInt(cursors.size());
+            for (Cursor cursor : cursors.values()) {
+                output.writeUTF(cursor.segment.process);
+                output.writeLong(cursor.segment.seq);
+                output.writeLong(cursor.offset);
+                output.writeInt(cursor.records);
+            }
+            output.close();
+            output = null;
+
+            if (!newCursorFile.renameTo(cursorFile)) {
+                throw new IOException("Cannot rename " + newCursorFile.getName());
+            }
+            cursorChanged = false;
+        } catch (IOException ex) {
+            Diagnostics.e(TAG, "Cannot save the local storage cursor: " + ex.getMessage());
+        } finally {
+            try {
+                if (output != null) {
+                    output.close();
+                }
+            } catch (IOException ex2) {
+                Diagnostics.e(TAG, "Cannot close the local storage cursor file: " + ex2.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns whether there are logs to upload - always false, unless this process is the uploader.
+     */
+    public synchronized boolean hasPendingLogs() {
+        if (!tryBecomeUploader()) {
+            return false;
+        }
+        refreshSegments(false);
+
+        for (Map.Entry<SegmentId, SegmentStats> entry : segments.entrySet()) {
+            if (getPendingBytes(entry.getKey(), entry.getValue()) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the logs waiting in the storage, computed from the index without reading them. The uploader
+     * counts the logs of all processes, which haven't been sent yet; other processes count just their
+     * own stored logs, including the ones that have been sent already, but not deleted yet. The counts
+     * of the segments other processes are appending to may lag behind a bit.
+     */
+    public synchronized Backlog getBacklog() {
+        boolean isUploader = uploaderLock != null;
+        if (isUploader) {
+            refreshSegments(false);
+        }
+        TreeMap<SegmentId, SegmentStats> counted = isUploader ? segments : ownSegments;
+
+        int logCount = 0;
+        long byteCount = 0;
+        long oldestTimestamp = 0;
+        long newestTimestamp = 0;
+        for (Map.Entry<SegmentId, SegmentStats> entry : counted.entrySet()) {
+            SegmentStats stats = entry.getValue();
+            long pendingBytes = isUploader ? getPendingBytes(entry.getKey(), stats) : stats.bytes - stats.headerSize;
+            if (pendingBytes <= 0) {
+                continue;
+            }
+
+            Cursor cursor = isUploader ? cursors.get(entry.getKey()) : null;
+            int consumed = cursor != null ? cursor.records : 0;
+            logCount += Math.max(stats.count - consumed, 0);
+            byteCount += pendingBytes;
+            if (stats.count > 0) {
+                if (oldestTimestamp == 0 || stats.firstTimestamp < oldestTimestamp) {
+                    oldestTimestamp = stats.firstTimestamp;
+                }
+                newestTimestamp = Math.max(newestTimestamp, stats.lastTimestamp);
+            }
+        }
+
+        return new Backlog(logCount, byteCount, oldestTimestamp, newestTimestamp);
+    }
+
+    /**
+     * Returns whether this process is the one, which uploads the stored logs.
+     */
+    public synchronized boolean isUploader() {
+        return uploaderLock != null;
+    }
+
+    /**
+     * Releases the file locks, so another process (or another storage instance) can take over.
+     */
+    public synchronized void close() {
+        closeActiveWriter();
+        activeSegment = null;
+        activeStats = null;
+        closeIndexWriter();
+
+        try {
+            if (uploaderLock != null) {
+                uploaderLock.release();
+                uploaderLock = null;
+            }
+            if (lockFile != null) {
+                lockFile.close();
+                lockFile = null;
+            }
+        } catch (IOException ex) {
+            Diagnostics.e(TAG, "Cannot release the local storage lock: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Returns the number of bytes of the segment after its cursor.
+     */
+    private long getPendingBytes(SegmentId segment, SegmentStats stats) {
+        Cursor cursor = cursors.get(segment);
+        return stats.bytes - (cursor != null ? Math.max(stats.headerSize, cursor.offset) : stats.headerSize);
+    }
+
+    private boolean readSegment(SegmentId segment, long offset, int record, int maxCount,
+                                Queue<LogItem> logs) {
+        long segmentLength = segments.get(segment).bytes;
+        SegmentReader reader = null;
+
+        TagDictionary dictionary = dictionaries.get(segment);
+        if (dictionary == null) {
+            dictionary = new TagDictionary();
+            dictionaries.put(segment, dictionary);
+        }
+
+        try {
+            reader = new SegmentReader(segmentFile(segment), offset, dictionary);
+            while (reader.position < segmentLength && logs.size() < maxCount) {
+                if (!reader.next()) {
+                    return false;
+                }
+
+                LogItem logItem = new LogItem(reader.priority, reader.tag, new String(reader.message, UTF8),
+                        reader.timestamp);
+                logItem.mStorageSegment = segment;
+                logItem.mStorageEnd = reader.position;
+                logItem.mStorageRecord = record++;
+                logs.offer(logItem);
+            }
+
+        } catch (FileNotFoundException ex) {
+            // The segment has been dropped by its process due to the size limit.
+            forgetSegment(segment);
+        } catch (IOException ex) {
+            Diagnostics.e(TAG, "Cannot load logs from the local storage: " + ex.getMessage());
+            // Basically, ignore the exception - the logs will be read again on the next attempt.
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the records of a sealed segment of this process, which is not in the index (or doesn't match
+     * its entry), to get its stats. Torn or corrupted records at the end are cut off.
+     */
+    private SegmentStats scanSegment(SegmentId segment) {
+        File file = segmentFile(segment);
+        SegmentStats stats = new SegmentStats(0);
+        SegmentReader reader = null;
+
+        try {
+            reader = new SegmentReader(file, 0, new TagDictionary());
+            stats.headerSize = reader.headerSize;
+            stats.bytes = reader.position;
+            while (reader.next()) {
+                stats.add((int) (reader.position - stats.bytes), reader.timestamp);
+            }
+        } catch (IOException ex) {
+            Diagnostics.e(TAG, "Cannot load logs from the local storage: " + ex.getMessage());
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+
+        long length = file.length();
+        if (stats.bytes < length) {
+            Diagnostics.e(TAG, "Part of the local storage is corrupted - " + (length - stats.bytes) +
+                    " bytes of logs are dropped.");
+            truncate(file, stats.bytes);
+        }
+        return stats;
+    }
+
+    private void truncate(File file, long length) {
+        RandomAccessFile output = null;
+        try {
+            output = new RandomAccessFile(file, "rw");
+            output.setLength(length);
+        } catch (IOException ex) {
+            Diagnostics.e(TAG, "Cannot truncate " + file.getName() + ": " + ex.getMessage());
+        } finally {
+            try {
+                if (output != null) {
+                    output.close();
+                }
+            } catch (IOException ex2) {
+                Diagnostics.e(TAG, "Cannot close the local storage file: " + ex2.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Creates the next segment of this process. The segment is locked before it gets its name,
+     * so the uploader never sees it unlocked while it is being appended to.
+     */
+    private void openNewSegment() throws IOException {
+        closeActiveWriter();
+
+        long seq = System.currentTimeMillis();
+        if (!ownSegments.isEmpty()) {
+            seq = Math.max(seq, ownSegments.lastKey().seq + 1);
+        }
+        if (!segments.isEmpty()) {
+            seq = Math.max(seq, segments.lastKey().seq + 1);
+        }
+        SegmentId segment = new SegmentId(seq, process);
+
+        File newFile = new File(storageDir, segment.getFileName() + NEW_FILE_SUFFIX);
+        FileOutputStream writer = new FileOutputStream(newFile);
+        try {
+            activeLock = writer.getChannel().lock();
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+            header.putInt(SEGMENT_MAGIC);
+            header.putInt(SEGMENT_VERSION);
+            writer.write(header.array());
+            if (!newFile.renameTo(segmentFile(segment))) {
+                throw new IOException("Cannot rename " + newFile.getName());
+            }
+        } catch (IOException ex) {
+            activeLock = null;
+            writer.close();
+            if (!newFile.delete()) {
+                Diagnostics.e(TAG, "Cannot delete " + newFile.getName());
+            }
+            throw ex;
+        }
+
+        activeWriter = writer;
+        activeSegment = segment;
+        activeTags.clear();
+        activeStats = new SegmentStats(SEGMENT_HEADER_SIZE);
+        ownSize += SEGMENT_HEADER_SIZE;
+        ownSegments.put(segment, activeStats);
+        if (uploaderLock != null) {
+            segments.put(segment, activeStats);
+        }
+
+        // The uploader may have removed some of the segments since the index has been written.
+        for (SegmentId ownSegment : new ArrayList<>(ownSegments.keySet())) {
+            if (!segmentFile(ownSegment).exists()) {
+                forgetSegment(ownSegment);
+            }
+        }
+        writeIndex();
+    }
+
+    private void closeActiveWriter() {
+        if (activeWriter != null) {
+            try {
+                // Closing the stream releases the lock as well.
+                activeWriter.close();
+            } catch (IOException ex) {
+                Diagnostics.e(TAG, "Cannot close the local storage file: " + ex.getMessage());
+            }
+            activeWriter = null;
+            activeLock = null;
+        }
+    }
+
+    /**
+     * Writes the index of this process' segments from scratch - when a segment is added or removed.
+     */
+    private void writeIndex() {
+        closeIndexWriter();
+
+        File indexFile = indexFile(process);
+        File newIndexFile = new File(storageDir, indexFile.getName() + NEW_FILE_SUFFIX);
+        ByteBuffer index = ByteBuffer.allocate(INDEX_HEADER_SIZE + ownSegments.size() * INDEX_ENTRY_SIZE);
+        index.putInt(INDEX_MAGIC);
+        activeIndexEntry = -1;
+        for (Map.Entry<SegmentId, SegmentStats> entry : ownSegments.entrySet()) {
+            if (entry.getKey().equals(activeSegment)) {
+                activeIndexEntry = index.position();
+            }
+            index.put(entry.getValue().toIndexEntry(entry.getKey().seq));
+        }
+
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(newIndexFile);
+            output.write(index.array());
+            output.close();
+            output = null;
+
+            if (!newIndexFile.renameTo(indexFile)) {
+                throw new IOException("Cannot rename " + newIndexFile.getName());
+            }
+            if (activeIndexEntry >= 0) {
+                indexWriter = new RandomAccessFile(indexFile, "rw");
+            }
+        } catch (IOException ex) {
+            // The stats of the segments are restored from the segments on the next start.
+            Diagnostics.e(TAG, "Cannot save the local storage index: " + ex.getMessage());
+        } finally {
+            try {
+                if (output != null) {
+                    output.close();
+                }
+            } catch (IOException ex2) {
+                Diagnostics.e(TAG, "Cannot close the local storage index file: " + ex2.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Overwrites the index entry of the active segment after a record has been appended to it.
+     */
+    private void updateActiveIndexEntry() {
+        if (indexWriter == null) {
+            return;
+        }
+
+        try {
+            indexWriter.seek(activeIndexEntry);
+            indexWriter.write(activeStats.toIndexEntry(activeSegment.seq));
+        } catch (IOException ex) {
+            Diagnostics.e(TAG, "Cannot update the local storage index: " + ex.getMessage());
+            closeIndexWriter();
+        }
+    }
+
+    private void closeIndexWriter() {
+        if (indexWriter != null) {
+            try {
+                indexWriter.close();
+            } catch (IOException ex) {
+                Diagnostics.e(TAG, "Cannot close the local storage index file: " + ex.getMessage());
+            }
+            indexWriter = null;
+        }
+    }
+
+    /**
+     * Reads the index of the given process' segments. Entries which don't pass the checksum (e.g. torn
+     * by a crash) are skipped.
+     */
+    private Map<Long, SegmentStats> readIndex(String indexProcess) {
+        Map<Long, SegmentStats> index = new HashMap<>();
+        File indexFile = indexFile(indexProcess);
+        if (!indexFile.exists()) {
+            return index;
+        }
+
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (input.readInt() != INDEX_MAGIC) {
+                return index;
+            }
+
+            byte[] entry = new byte[INDEX_ENTRY_SIZE];
+            long entryCount = (indexFile.length() - INDEX_HEADER_SIZE) / INDEX_ENTRY_SIZE;
+            for (long i = 0; i < entryCount; ++i) {
+                input.readFully(entry);
+                ByteBuffer buffer = ByteBuffer.wrap(entry);
+                CRC32 crc = new CRC32();
+                crc.update(entry, 0, INDEX_ENTRY_SIZE - 4);
+                if (buffer.getInt(INDEX_ENTRY_SIZE - 4) != (int) crc.getValue()) {
+                    continue;
+                }
+
+                long seq = buffer.getLong();
+                SegmentStats stats = new SegmentStats(0);
+                stats.bytes = buffer.getLong();
+                stats.count = buffer.getInt();
+                stats.headerSize = buffer.getInt();
+                stats.firstTimestamp = buffer.getLong();
+                stats.lastTimestamp = buffer.getLong();
+                index.put(seq, stats);
+            }
+        } catch (FileNotFoundException ex) {
+            // No index yet.
+        } catch (IOException ex) {
+            Diagnostics.e(TAG, "Cannot load the local storage index: " + ex.getMessage());
+        } finally {
+            try {
+                if (input != null) {
+                    input.close();
+                }
+            } catch (IOException ex2) {
+                Diagnostics.e(TAG, "Cannot close the local storage index file: " + ex2.getMessage());
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns whether the segment won't grow any more - i.e. no process appends to it.
+     */
+    private boolean isSealed(SegmentId segment) {
+        if (segment.process.equals(process)) {
+            return !segment.equals(activeSegment);
+        }
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(segmentFile(segment), "rw");
+            FileLock lock = file.getChannel().tryLock();
+            if (lock != null) {
+                lock.release();
+                return true;
+            }
+        } catch (OverlappingFileLockException ex) {
+            // Locked by another storage instance of this process.
+        } catch (IOException ex) {
+            // Cannot be checked now - assume it's not sealed.
+        } finally {
+            try {
+                if (file != null) {
+                    file.close();
+                }
+            } catch (IOException ex2) {
+                Diagnostics.e(TAG, "Cannot close the local storage file: " + ex2.getMessage());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the segment file. The caller rewrites the index if the segment is one of this process'.
+     */
+    private void removeSegment(SegmentId segment) {
+        if (segment.equals(activeSegment)) {
+            closeActiveWriter();
+            closeIndexWriter();
+            activeSegment = null;
+            activeStats = null;
+        }
+
+        forgetSegment(segment);
+        if (cursors.remove(segment) != null) {
+            cursorChanged = true;
+        }
+        File segmentFile = segmentFile(segment);
+        if (!segmentFile.delete() && segmentFile.exists()) {
+            Diagnostics.e(TAG, "Cannot delete " + segmentFile.getName());
+        }
+    }
+
+    private void forgetSegment(SegmentId segment) {
+        SegmentStats stats = ownSegments.remove(segment);
+        if (stats != null) {
+            ownSize -= stats.bytes;
+        }
+        segments.remove(segment);
+        dictionaries.remove(segment);
+    }
+
+    /**
+     * Tries to lock the lock file, unless it has been tried recently. The process which holds
+     * the lock is the uploader.
+     */
+    private boolean tryBecomeUploader() {
+        if (uploaderLock != null) {
+            return true;
+        }
+
+        long now = System.currentTimeMillis();
+        if (lastElection != 0 && now - lastElection < ELECTION_INTERVAL) {
+            return false;
+        }
+        lastElection = now;
+
+        try {
+            if (lockFile == null) {
+                lockFile = new RandomAccessFile(new File(storageDir, LOCK_FILE_NAME), "rw");
+            }
+            uploaderLock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException ex) {
+            // Another storage instance of this process is the uploader.
+        } catch (IOException ex) {
+            Diagnostics.e(TAG, "Cannot lock the local storage: " + ex.getMessage());
+        }
+
+        if (uploaderLock == null) {
+            return false;
+        }
+
+        refreshSegments(true);
+        loadCursors();
+        migrateLegacyStorageFile();
+        return true;
+    }
+
+    /**
+     * Looks for the segments of the other processes, and for the growth of their active ones.
+     */
+    private void refreshSegments(boolean force) {
+        long now = System.currentTimeMillis();
+        if (!force && now - lastRefresh < REFRESH_INTERVAL) {
+            return;
+        }
+        lastRefresh = now;
+
+        TreeMap<SegmentId, SegmentStats> found = new TreeMap<>();
+        Map<String, Map<Long, SegmentStats>> indexes = new HashMap<>();
+        File[] files = storageDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                SegmentId segment = SegmentId.parse(file.getName());
+                if (segment == null) {
+                    continue;
+                }
+
+                SegmentStats stats = ownSegments.get(segment);
+                if (stats == null) {
+                    Map<Long, SegmentStats> index = indexes.get(segment.process);
+                    if (index == null) {
+                        index = readIndex(segment.process);
+                        indexes.put(segment.process, index);
+                    }
+
+                    stats = index.get(segment.seq);
+                    if (stats == null) {
+                        // Not in the index yet - the number of records is not known.
+                        stats = new SegmentStats(peekHeaderSize(file));
+                    }
+                    // Records may have been appended after the entry has been written.
+                    stats.bytes = Math.max(stats.bytes, file.length());
+                }
+                found.put(segment, stats);
+            }
+        }
+
+        segments.clear();
+        segments.putAll(found);
+        if (cursors.keySet().retainAll(found.keySet())) {
+            // The segments have been removed by their processes due to the size limit.
+            cursorChanged = true;
+        }
+        dictionaries.keySet().retainAll(found.keySet());
+        if (!force) {
+            removeConsumedSegments();
+        }
+    }
+
+    private int peekHeaderSize(File file) {
+        SegmentReader reader = null;
+        try {
+            reader = new SegmentReader(file, 0, new TagDictionary());
+            return reader.headerSize;
+        } catch (IOException ex) {
+            return 0;
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    private File segmentFile(SegmentId segment) {
+        return new File(storageDir, segment.getFileName());
+    }
+
+    private File indexFile(String indexProcess) {
+        return new File(storageDir, INDEX_FILE_NAME + (indexProcess.isEmpty() ? "" : "." + indexProcess) +
+                INDEX_FILE_SUFFIX);
+    }
+
+    /**
+     * Takes the stats of this process' segments from the index. Only the segments, which don't match
+     * their entries, are read - normally just the last one, if the process has been killed while
+     * appending to it.
+     */
+    private void loadOwnSegments() {
+        File[] files = storageDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Map<Long, SegmentStats> index = readIndex(process);
+        boolean indexChanged = false;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_FILE_PREFIX) && name.endsWith(SEGMENT_FILE_SUFFIX + NEW_FILE_SUFFIX)) {
+                // A segment of this process, which has never been named - it cannot contain anything.
+                SegmentId segment = SegmentId.parse(name.substring(0, name.length() - NEW_FILE_SUFFIX.length()));
+                if (segment != null && segment.process.equals(process) && !file.delete()) {
+                    Diagnostics.e(TAG, "Cannot delete " + name);
+                }
+                continue;
+            }
+
+            SegmentId segment = SegmentId.parse(name);
+            if (segment == null || !segment.process.equals(process)) {
+                continue;
+            }
+
+            SegmentStats stats = index.remove(segment.seq);
+            if (stats == null || stats.bytes != file.length()) {
+                stats = scanSegment(segment);
+                indexChanged = true;
+            }
+            ownSegments.put(segment, stats);
+            ownSize += stats.bytes;
+        }
+
+        if (indexChanged || !index.isEmpty()) {
+            writeIndex();
+        }
+    }
+
+    private void loadCursors() {
+        File cursorFile = new File(storageDir, CURSOR_FILE_NAME);
+        DataInputStream input = null;
+
+        List<Cursor> loaded = new ArrayList<>();
+        boolean perProcess = true;
+        cursors.clear();
+        if (cursorFile.exists()) {
+            try {
+                input = new DataInputStream(new FileInputStream(cursorFile));
+                if (cursorFile.length() == 16) {
+                    // The single cursor of the previous versions - of the main process' segments.
+                    long seq = input.readLong();
+                    loaded.add(new Cursor(new SegmentId(seq, ""), input.readLong(), 0));
+                } else {
+                    int count = input.readInt();
+                    boolean hasRecords = count == PROCESS_CURSOR_FORMAT_MARKER || count == SEGMENT_CURSOR_FORMAT_MARKER;
+                    perProcess = count != SEGMENT_CURSOR_FORMAT_MARKER;
+                    if (hasRecords) {
+                        count = input.readInt();
+                    }
+                    for (int i = 0; i < count; ++i) {
+                        String cursorProcess = input.readUTF();
+                        long seq = input.readLong();
+                        long offset = input.readLong();
+                        int records = hasRecords ? input.readInt() : 0;
+                        loaded.add(new Cursor(new SegmentId(seq, cursorProcess), offset, records));
+                    }
+                }
+            } catch (IOException ex) {
+                Diagnostics.e(TAG, "Cannot load the local storage cursor - the logs will be sent again: " + ex.getMessage());
+                loaded.clear();
+            } finally {
+                try {
+                    if (input != null) {
+                        input.close();
+                    }
+                } catch (IOException ex2) {
+                    Diagnostics.e(TAG, "Cannot close the local storage cursor file: " + ex2.getMessage());
+                }
+            }
+        }
+
+        boolean removedOwn = false;
+        for (Cursor cursor : loaded) {
+            cursors.put(cursor.segment, cursor);
+            if (!perProcess) {
+                continue;
+            }
+
+            // The previous versions consumed the segments of a process in order - the ones before
+            // the cursor have been consumed, but not deleted yet.
+            for (SegmentId segment : new ArrayList<>(segments.headMap(cursor.segment).keySet())) {
+                if (segment.process.equals(cursor.segment.process)) {
+                    removeSegment(segment);
+                    removedOwn |= segment.process.equals(process);
+                }
+            }
+        }
+
+        if (removedOwn) {
+            writeIndex();
+        }
+        removeConsumedSegments();
+    }
+
+    /**
+     * Removes the segments, which have been consumed, but not deleted yet - e.g. because they were
+     * still being appended to when their last record was committed.
+     */
+    private void removeConsumedSegments() {
+        boolean removedOwn = false;
+        for (Map.Entry<SegmentId, SegmentStats> entry : new ArrayList<>(segments.entrySet())) {
+            SegmentId segment = entry.getKey();
+            Cursor cursor = cursors.get(segment);
+            if (cursor != null && entry.getValue().bytes <= cursor.offset && isSealed(segment)) {
+                removeSegment(segment);
+                removedOwn |= segment.process.equals(process);
+            }
+        }
+
+        if (removedOwn) {
+            writeIndex();
+        }
+    }
+
+    /**
+     * Moves the logs from the storage file used by the previous versions of the library to the segments.
+     */
+    private void migrateLegacyStorageFile() {
+        File legacyFile = new File(storageDir, LEGACY_STORAGE_FILE_NAME);
+        if (!legacyFile.exists()) {
+            return;
+        }
+
+        BufferedReader bufReader = null;
+        try {
+            bufReader = new BufferedReader(new InputStreamReader(new FileInputStream(legacyFile)));
+
+            String logLine = bufReader.readLine();
+            while (logLine != null) {
+                LogItem logItem;
+                try {
+                    Matcher m = pattern.matcher(logLine);
+                    m.matches();
+                    logItem = new LogItem(m.group(1), m.group(2), m.group(3));
+                } catch (Exception ex) {
+                    Diagnostics.e(TAG, "Unexpected exception", ex);
+                    logItem = new LogItem(LogPriority.ERROR, "LogStorageError", logLine);
+                }
+
+                putLogToStorage(logItem);
+                logLine = bufReader.readLine();
+            }
+
+        } catch (IOException ex) {
+            Diagnostics.e(TAG, "Cannot load logs from the legacy local storage: " + ex.getMessage());
+        } finally {
+            try {
+                if (bufReader != null) {
+                    bufReader.close();
+                }
+            } catch (IOException ex2) {
+                Diagnostics.e(TAG, "Cannot close the local storage file: " + ex2.getMessage());
+            }
+        }
+
+        if (!legacyFile.delete()) {
+            Diagnostics.e(TAG, "Cannot delete " + LEGACY_STORAGE_FILE_NAME);
+        }
+    }
+
+    /**
+     * Logs waiting in the storage - see {@link #getBacklog()}.
+     */
+    public static final class Backlog {
+
+        private final int logCount;
+        private final long byteCount;
+        private final long oldestTimestamp;
+        private final long newestTimestamp;
+
+        Backlog(int logCount, long byteCount, long oldestTimestamp, long newestTimestamp) {
+            this.logCount = logCount;
+            this.byteCount = byteCount;
+            this.oldestTimestamp = oldestTimestamp;
+            this.newestTimestamp = newestTimestamp;
+        }
+
+        public int getLogCount() {
+            return logCount;
+        }
+
+        /**
+         * Size of the stored logs in bytes, including the storage overhead.
+         */
+        public long getByteCount() {
+            return byteCount;
+        }
+
+        /**
+         * Timestamp of the first log in the oldest segment with logs waiting, 0 if there are none.
+         * Segments are consumed gradually, so the oldest waiting log may be a bit newer.
+         */
+        public long getOldestTimestamp() {
+            return oldestTimestamp;
+        }
+
+        /**
+         * Timestamp of the newest stored log, 0 if there are none.
+         */
+        public long getNewestTimestamp() {
+            return newestTimestamp;
+        }
+    }
+
+    /**
+     * Identifies a segment: the sequence number (the creation time in milliseconds, unique within
+     * a process) and the process key. Segments are ordered by their creation.
+     */
+    static final class SegmentId implements Comparable<SegmentId> {
+
+        final long seq;
+        final String process;
+
+        SegmentId(long seq, String process) {
+            this.seq = seq;
+            this.process = process;
+        }
+
+        /**
+         * Parses the segment file name - LogentriesLogStorage.[seq].seg for the main process,
+         * LogentriesLogStorage.[seq].[process].seg for the others.
+         */
+        static SegmentId parse(String fileName) {
+            if (!fileName.startsWith(SEGMENT_FILE_PREFIX) || !fileName.endsWith(SEGMENT_FILE_SUFFIX)) {
+                return null;
+            }
+
+            String id = fileName.substring(SEGMENT_FILE_PREFIX.length(), fileName.length() - SEGMENT_FILE_SUFFIX.length());
+            int dot = id.indexOf('.');
+            try {
+                return new SegmentId(Long.parseLong(dot < 0 ? id : id.substring(0, dot)),
+                        dot < 0 ? "" : id.substring(dot + 1));
+            } catch (NumberFormatException ex) {
+                Diagnostics.e(TAG, "Unexpected file in the local storage: " + fileName);
+                return null;
+            }
+        }
+
+        String getFileName() {
+            return SEGMENT_FILE_PREFIX + seq + (process.isEmpty() ? "" : "." + process) + SEGMENT_FILE_SUFFIX;
+        }
+
+        @Override
+        public int compareTo(SegmentId other) {
+            if (seq != other.seq) {
+                return seq < other.seq ? -1 : 1;
+            }
+            return process.compareTo(other.process);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof SegmentId && compareTo((SegmentId) other) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (seq ^ (seq >>> 32)) * 31 + process.hashCode();
+        }
+    }
+
+    /**
+     * Size, number of records and the timestamps of the first and the last record of a segment.
+     */
+    private static final class SegmentStats {
+
+        long bytes;
+        int count;
+        int headerSize;
+        long firstTimestamp;
+        long lastTimestamp;
+
+        SegmentStats(int headerSize) {
+            this.headerSize = headerSize;
+            this.bytes = headerSize;
+        }
+
+        void add(int recordSize, long timestamp) {
+            if (count == 0) {
+                firstTimestamp = timestamp;
+            }
+            lastTimestamp = timestamp;
+            bytes += recordSize;
+            ++count;
+        }
+
+        byte[] toIndexEntry(long seq) {
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+            entry.putLong(seq);
+            entry.putLong(bytes);
+            entry.putInt(count);
+            entry.putInt(headerSize);
+            entry.putLong(firstTimestamp);
+            entry.putLong(lastTimestamp);
+
+            CRC32 crc = new CRC32();
+            crc.update(entry.array(), 0, INDEX_ENTRY_SIZE - 4);
+            entry.putInt((int) crc.getValue());
+            return entry.array();
+        }
+    }
+
+    /**
+     * Priority and tag of records - an entry of a segment's dictionary.
+     */
+    private static final class TagEntry {
+
+        final int priority;
+        final String tag;
+
+        TagEntry(int priority, String tag) {
+            this.priority = priority;
+            this.tag = tag;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof TagEntry)) {
+                return false;
+            }
+            TagEntry entry = (TagEntry) other;
+            return priority == entry.priority && tag.equals(entry.tag);
+        }
+
+        @Override
+        public int hashCode() {
+            return priority * 31 + tag.hashCode();
+        }
+    }
+
+    /**
+     * Dictionary of a segment, as far as it has been read.
+     */
+    private static final class TagDictionary {
+
+        final List<TagEntry> entries = new ArrayList<>();
+
+        /**
+         * Offset in the segment, up to which the entries have been collected.
+         */
+        long end = 0;
+    }
+
+    /**
+     * Reads the records of a segment sequentially, in any format.
+     */
+    private static final class SegmentReader {
+
+        private final DataInputStream input;
+        private final int version;
+        private final TagDictionary dictionary;
+        private boolean corrupted = false;
+        final int headerSize;
+
+        /**
+         * Offset of the next record in the segment.
+         */
+        long position;
+
+        long timestamp;
+        int priority;
+        String tag;
+        byte[] message;
+
+        /**
+         * Opens the segment for reading from the given offset, or from the first record if the offset
+         * is before it. The tags of the records before the offset are taken from the dictionary - the
+         * records, which it doesn't cover yet, are read to fill it in.
+         */
+        SegmentReader(File file, long offset, TagDictionary dictionary) throws IOException {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            this.dictionary = dictionary;
+            try {
+                int segmentVersion = 0;
+                if (file.length() >= SEGMENT_HEADER_SIZE) {
+                    input.mark(SEGMENT_HEADER_SIZE);
+                    if (input.readInt() == SEGMENT_MAGIC) {
+                        segmentVersion = input.readInt();
+                    }
+                    if (segmentVersion != 1 && segmentVersion != SEGMENT_VERSION) {
+                        segmentVersion = 0;
+                        input.reset();
+                    }
+                }
+                version = segmentVersion;
+                headerSize = version > 0 ? SEGMENT_HEADER_SIZE : 0;
+                position = Math.max(offset, headerSize);
+
+                long target = position;
+                if (version == SEGMENT_VERSION) {
+                    position = Math.max(headerSize, Math.min(target, dictionary.end));
+                }
+                long toSkip = position - headerSize;
+                while (toSkip > 0) {
+                    long skipped = input.skip(toSkip);
+                    if (skipped <= 0) {
+                        throw new EOFException();
+                    }
+                    toSkip -= skipped;
+                }
+
+                while (position < target && !corrupted) {
+                    // The records before the offset have been read before, so they are complete.
+                    corrupted = !next();
+                }
+            } catch (IOException ex) {
+                input.close();
+                throw ex;
+            }
+        }
+
+        /**
+         * Reads the next record. Returns false if there is no complete and valid record - at the end of
+         * the segment, or if the rest of it is torn or corrupted.
+         */
+        boolean next() throws IOException {
+            if (corrupted) {
+                return false;
+            }
+
+            try {
+                int length = input.readInt();
+                int minLength = version == SEGMENT_VERSION ? RECORD_HEADER_SIZE : LEGACY_RECORD_HEADER_SIZE;
+                if (length < minLength || length > MAX_RECORD_SIZE) {
+                    return false;
+                }
+                int crc = version > 0 ? input.readInt() : 0;
+
+                byte[] record = new byte[length];
+                input.readFully(record);
+                if (version > 0) {
+                    CRC32 recordCrc = new CRC32();
+                    recordCrc.update(record, 0, length);
+                    if (crc != (int) recordCrc.getValue()) {
+                        return false;
+                    }
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                timestamp = buffer.getLong();
+                if (version == SEGMENT_VERSION) {
+                    if (!readTagId(buffer)) {
+                        return false;
+                    }
+                } else {
+                    priority = buffer.getInt();
+                    int tagLength = buffer.getInt();
+                    if (tagLength < 0 || tagLength > buffer.remaining()) {
+                        return false;
+                    }
+                    tag = new String(record, buffer.position(), tagLength, UTF8);
+                    buffer.position(buffer.position() + tagLength);
+                }
+                message = new byte[buffer.remaining()];
+                buffer.get(message);
+
+                position += (version > 0 ? 8 : 4) + length;
+                if (dictionary.end < position) {
+                    dictionary.end = position;
+                }
+                return true;
+            } catch (EOFException ex) {
+                // Torn record at the end of the segment - the process has been stopped while writing it,
+                // or is still writing it.
+                return false;
+            }
+        }
+
+        /**
+         * Reads the tag id of a record, and the dictionary entry following it, if it is new.
+         */
+        private boolean readTagId(ByteBuffer buffer) {
+            int tagId = buffer.getShort() & 0xFFFF;
+            boolean isNew = (tagId & NEW_TAG_FLAG) != 0;
+            tagId &= ~NEW_TAG_FLAG;
+
+            List<TagEntry> entries = dictionary.entries;
+            if (isNew) {
+                if (buffer.remaining() < TAG_ENTRY_SIZE || tagId > entries.size()) {
+                    return false;
+                }
+                int tagPriority = buffer.getInt();
+                int tagLength = buffer.getInt();
+                if (tagLength < 0 || tagLength > buffer.remaining()) {
+                    return false;
+                }
+                // Read again, if the reader has started before the end of the dictionary.
+                if (tagId == entries.size()) {
+                    entries.add(new TagEntry(tagPriority, new String(buffer.array(), buffer.position(), tagLength, UTF8)));
+                }
+                buffer.position(buffer.position() + tagLength);
+            } else if (tagId >= entries.size()) {
+                return false;
+            }
+
+            TagEntry entry = entries.get(tagId);
+            priority = entry.priority;
+            tag = entry.tag;
+            return true;
+        }
+
+        void close() {
+            try {
+                input.close();
+            } catch (IOException ex) {
+                Diagnostics.e(TAG, "Cannot close the local storage file: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Position of the first record of a segment, which hasn't been sent yet.
+     */
+    private static final class Cursor {
+
+        final SegmentId segment;
+        final long offset;
+
+        /**
+         * Number of the records of the segment before the offset.
+         */
+        final int records;
+
+        Cursor(SegmentId segment, long offset, int records) {
+            this.segment = segment;
+            this.offset = offset;
+            this.records = records;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.logentries.logger;
+
+/**
+ * What the logger does with a new log message when its queue is full - either by the number of
+ * messages, or by their size (see {@link AsyncLoggingWorker#setMaxQueueBytes(long)}).
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Wait for free space in the queue, up to the block timeout; the message is rejected if there
+     * is still no space. Suits background producers, which can afford to slow down.
+     */
+    BLOCK,
+
+    /**
+     * Reject the new message.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Drop the oldest message in the queue to make room for the new one. This is the default.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Drop the oldest message in the queue, which is less important than the new one (e.g. a VERBOSE
+     * one for an ERROR), or reject the new message if there is none. Costs a scan of the queue.
+     */
+    DROP_LOWEST_PRIORITY,
+
+    /**
+     * Put the new message to the local storage, it is sent after the logs already stored there.
+     * Nothing is lost, but the message is written to a file on the caller's thread and is sent out
+     * of order with the queued ones.
+     */
+    SPILL
+}
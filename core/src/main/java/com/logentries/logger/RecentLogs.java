@@ -0,0 +1,238 @@
+package com.logentries.logger;
+
+import com.logentries.misc.Utils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The most recent logs, kept in memory whether they have been sent or not - e.g. to attach them to
+ * a crash report. The ring holds up to maxCount logs, and drops the oldest ones when their (estimated)
+ * size exceeds maxBytes.
+ * <p>
+ * Neither adding a log nor taking a snapshot locks, so the snapshot can be taken from an uncaught
+ * exception handler - even if the thread, which has crashed, was in the middle of logging. The snapshot
+ * costs a pass over the ring; deferred messages not yet rendered by the sender are rendered then.
+ */
+public class RecentLogs {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * A log in the snapshot.
+     */
+    public static final class Entry {
+
+        private final long timestamp;
+        private final int priority;
+        private final String tag;
+        private final String message;
+
+        Entry(long timestamp, int priority, String tag, String message) {
+            this.timestamp = timestamp;
+            this.priority = priority;
+            this.tag = tag;
+            this.message = message;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public String getTag() {
+            return tag;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * Returns the log formatted as it is sent without the metadata - one line.
+         */
+        @Override
+        public String toString() {
+            return Utils.formatMessage(tag, message, priority, timestamp, false, false, false, false, null, true);
+        }
+    }
+
+    private final int maxCount;
+    private final long maxBytes;
+
+    private final AtomicReferenceArray<Slot> slots;
+
+    /**
+     * Sequence number of the next log, and of the oldest one not dropped for the size.
+     */
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLong oldest = new AtomicLong();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    RecentLogs(int maxCount, long maxBytes) {
+        if (maxCount <= 0) {
+            throw new IllegalArgumentException("maxCount must be greater than zero");
+        }
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be greater than zero");
+        }
+
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
+        this.slots = new AtomicReferenceArray<>(maxCount);
+    }
+
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    void add(LogItem logItem) {
+        long seq = next.getAndIncrement();
+        Slot slot = new Slot(seq, logItem, logItem.getSize());
+        int index = index(seq);
+
+        // The size is counted before the log gets to the ring, and discounted only after it has left
+        // it - so the total never falls below the size of the logs in the ring.
+        bytes.addAndGet(slot.size);
+        Slot replaced = slots.getAndSet(index, slot);
+        // A newer log may have got to the slot first (the ring has wrapped around meanwhile) - it is
+        // kept, unless yet another log has taken the slot already.
+        if (replaced != null && replaced.seq > seq && slots.compareAndSet(index, slot, replaced)) {
+            bytes.addAndGet(-slot.size);
+            return;
+        }
+
+        long total = replaced == null ? bytes.get() : bytes.addAndGet(-replaced.size);
+        if (total > maxBytes) {
+            trim(seq);
+        }
+    }
+
+    /**
+     * Returns the estimated size of the logs in the ring in bytes.
+     */
+    long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Sums up the size of the logs in the ring by a pass over it.
+     */
+    long sumSlotBytes() {
+        long sum = 0;
+        for (int i = 0; i < maxCount; ++i) {
+            Slot slot = slots.get(i);
+            if (slot != null) {
+                sum += slot.size;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Drops the oldest logs until the size fits, always keeping the newest one.
+     */
+    private void trim(long newest) {
+        while (bytes.get() > maxBytes) {
+            long seq = oldest.get();
+            if (seq >= newest) {
+                return;
+            }
+
+            long floor = newest - maxCount + 1;
+            if (seq < floor) {
+                // The logs before the floor have been overwritten already.
+                oldest.compareAndSet(seq, floor);
+                continue;
+            }
+
+            if (oldest.compareAndSet(seq, seq + 1)) {
+                int index = index(seq);
+                Slot slot = slots.get(index);
+                if (slot != null && slot.seq == seq && slots.compareAndSet(index, slot, null)) {
+                    bytes.addAndGet(-slot.size);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the recent logs, the oldest first.
+     */
+    public List<Entry> snapshot() {
+        long end = next.get();
+        long start = Math.max(oldest.get(), end - maxCount);
+        if (start >= end) {
+            return Collections.emptyList();
+        }
+
+        List<Entry> entries = new ArrayList<>((int) (end - start));
+        for (long seq = start; seq < end; ++seq) {
+            Slot slot = slots.get(index(seq));
+            // The slot may have been taken by a newer log, or not filled in yet.
+            if (slot != null && slot.seq == seq) {
+                LogItem logItem = slot.logItem;
+                entries.add(new Entry(logItem.mTimestamp, logItem.mPriority, logItem.mTag, logItem.peekMessage()));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Writes the snapshot to the file, one log per line.
+     */
+    public void dump(File file) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8));
+        try {
+            dump(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes the snapshot, one log per line; the writer is flushed, not closed.
+     */
+    public void dump(Writer writer) throws IOException {
+        for (Entry entry : snapshot()) {
+            writer.write(entry.toString());
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    private int index(long seq) {
+        return (int) (seq % maxCount);
+    }
+
+    private static final class Slot {
+
+        final long seq;
+        final LogItem logItem;
+        final int size;
+
+        Slot(long seq, LogItem logItem, int size) {
+            this.seq = seq;
+            this.logItem = logItem;
+            this.size = size;
+        }
+    }
+}
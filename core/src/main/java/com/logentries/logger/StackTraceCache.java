@@ -0,0 +1,107 @@
+package com.logentries.logger;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Renders the stack traces of the logged throwables. A trace is sent in full the first time, with its id
+ * (the hash of the stack frames); when the same trace comes again, just the throwable itself is sent with
+ * a reference to the id and the number of times the trace has occurred - so a crash storm doesn't send
+ * (nor format) the same trace over and over. The full trace is sent again after {@link #FULL_TRACE_INTERVAL}.
+ * <p>
+ * Shared by the socket appenders, used on their threads.
+ */
+class StackTraceCache {
+
+    /**
+     * Max. number of traces remembered; the least recently seen ones are forgotten.
+     */
+    static final int MAX_TRACES = 256;
+
+    static final long FULL_TRACE_INTERVAL = 10 * 60 * 1000; // 10 minutes.
+
+    /**
+     * Max. number of the causes taken into account.
+     */
+    private static final int MAX_CAUSE_DEPTH = 16;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Map<Long, Trace> traces = new LinkedHashMap<Long, Trace>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Trace> eldest) {
+            return size() > MAX_TRACES;
+        }
+    };
+
+    /**
+     * Returns the message followed by the throwable's stack trace, or by the reference to it.
+     *
+     * @param message may be null.
+     */
+    String render(String message, Throwable throwable) {
+        long hash = hash(throwable);
+        long now = System.currentTimeMillis();
+
+        int count;
+        synchronized (traces) {
+            Trace trace = traces.get(hash);
+            if (trace == null || now - trace.fullTraceTime >= FULL_TRACE_INTERVAL) {
+                trace = new Trace(now);
+                traces.put(hash, trace);
+            }
+            count = ++trace.count;
+        }
+
+        StringWriter text = new StringWriter();
+        if (message != null) {
+            text.append(message).append('\n');
+        }
+
+        String id = Long.toHexString(hash);
+        if (count == 1) {
+            PrintWriter writer = new PrintWriter(text);
+            throwable.printStackTrace(writer);
+            writer.flush();
+            text.append("Trace id: ").append(id);
+        } else {
+            text.append(throwable.toString()).append(" (same stack trace as trace id: ").append(id)
+                    .append(", occurrence #").append(String.valueOf(count)).append(')');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Hashes the classes and the stack frames of the throwable and its causes - not the messages, which
+     * often differ for the same problem.
+     */
+    static long hash(Throwable throwable) {
+        long hash = FNV_OFFSET_BASIS;
+        Map<Throwable, Boolean> seen = new IdentityHashMap<>();
+        for (Throwable cause = throwable; cause != null && seen.size() < MAX_CAUSE_DEPTH; cause = cause.getCause()) {
+            if (seen.put(cause, Boolean.TRUE) != null) {
+                break;
+            }
+
+            hash = (hash ^ cause.getClass().getName().hashCode()) * FNV_PRIME;
+            for (StackTraceElement frame : cause.getStackTrace()) {
+                hash = (hash ^ frame.hashCode()) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    private static final class Trace {
+
+        final long fullTraceTime;
+        int count;
+
+        Trace(long fullTraceTime) {
+            this.fullTraceTime = fullTraceTime;
+        }
+    }
+}
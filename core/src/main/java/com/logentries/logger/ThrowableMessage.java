@@ -0,0 +1,50 @@
+package com.logentries.logger;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Log message with a throwable, rendered (with the stack trace, or a reference to it) on the socket
+ * appender's thread.
+ */
+class ThrowableMessage implements DeferredMessage {
+
+    private final String message;
+    private final DeferredMessage deferredMessage;
+    private final Throwable throwable;
+    private final StackTraceCache stackTraces;
+
+    ThrowableMessage(String message, Throwable throwable, StackTraceCache stackTraces) {
+        this.message = message;
+        this.deferredMessage = null;
+        this.throwable = throwable;
+        this.stackTraces = stackTraces;
+    }
+
+    ThrowableMessage(DeferredMessage message, Throwable throwable, StackTraceCache stackTraces) {
+        this.message = null;
+        this.deferredMessage = message;
+        this.throwable = throwable;
+        this.stackTraces = stackTraces;
+    }
+
+    @Override
+    public String render() {
+        return stackTraces.render(deferredMessage != null ? deferredMessage.render() : message, throwable);
+    }
+
+    /**
+     * Renders the message with the full stack trace, leaving the stack traces sent untouched.
+     */
+    String renderFullTrace() {
+        String text = deferredMessage != null ? deferredMessage.render() : message;
+        StringWriter trace = new StringWriter();
+        if (text != null) {
+            trace.append(text).append('\n');
+        }
+        PrintWriter writer = new PrintWriter(trace);
+        throwable.printStackTrace(writer);
+        writer.flush();
+        return trace.toString();
+    }
+}
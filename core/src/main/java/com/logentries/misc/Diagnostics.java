@@ -0,0 +1,39 @@
+package com.logentries.misc;
+
+import com.logentries.logger.LogPriority;
+
+/**
+ * Reports the logger's own problems to the {@link Platform} (logcat on Android) - the counterpart of
+ * android.util.Log for the platform-neutral code. Until the platform is set (see
+ * {@link Utils#setPlatform(Platform)}) they go to the standard error.
+ */
+public final class Diagnostics {
+
+    private Diagnostics() {
+    }
+
+    public static void d(String tag, String message) {
+        log(LogPriority.DEBUG, tag, message, null);
+    }
+
+    public static void d(String tag, String message, Throwable throwable) {
+        log(LogPriority.DEBUG, tag, message, throwable);
+    }
+
+    public static void e(String tag, String message) {
+        log(LogPriority.ERROR, tag, message, null);
+    }
+
+    public static void e(String tag, String message, Throwable throwable) {
+        log(LogPriority.ERROR, tag, message, throwable);
+    }
+
+    private static void log(int priority, String tag, String message, Throwable throwable) {
+        Platform current = Utils.getPlatform();
+        if (current != null) {
+            current.log(priority, tag, message, throwable);
+        } else if (priority >= LogPriority.WARN) {
+            System.err.println(tag + ": " + message);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.logentries.misc;
+
+import com.logentries.logger.LogPriority;
+
+import java.io.File;
+
+/**
+ * Platform of a plain JVM: the files are kept in the given directory, the device properties are read
+ * from the system properties (the build and the hardware default to the OS and its architecture) and
+ * the logger's own problems are printed to the standard error.
+ */
+public class JvmPlatform implements Platform {
+
+    private final File filesDir;
+    private final String processKey;
+    private final int minPriority;
+
+    /**
+     * @param filesDir directory for the logger's files, created if it does not exist.
+     */
+    public JvmPlatform(File filesDir) {
+        this(filesDir, "", LogPriority.WARN);
+    }
+
+    /**
+     * @param processKey  distinguishes the files of processes sharing the directory - empty for one of them.
+     * @param minPriority the logger's own messages with a lower priority are not printed.
+     */
+    public JvmPlatform(File filesDir, String processKey, int minPriority) {
+        if (!filesDir.isDirectory() && !filesDir.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create the directory " + filesDir);
+        }
+        this.filesDir = filesDir;
+        this.processKey = processKey.replaceAll("[^A-Za-z0-9_]", "_");
+        this.minPriority = minPriority;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return filesDir;
+    }
+
+    @Override
+    public String getProcessKey() {
+        return processKey;
+    }
+
+    @Override
+    public String getDeviceProperty(String name) {
+        String value = System.getProperty(name);
+        if (value != null) {
+            return value;
+        }
+
+        if (name.equals("ro.build.display.id")) {
+            return System.getProperty("os.name", "") + " " + System.getProperty("os.version", "");
+        } else if (name.equals("ro.hardware")) {
+            return System.getProperty("os.arch", "");
+        }
+        return "";
+    }
+
+    @Override
+    public void log(int priority, String tag, String message, Throwable throwable) {
+        if (priority < minPriority) {
+            return;
+        }
+
+        System.err.println(tag + ": " + message);
+        if (throwable != null) {
+            throwable.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.logentries.misc;
+
+import java.io.File;
+
+/**
+ * What the logger needs from the platform it runs on: where to keep its files, which process it is
+ * in, the device properties and where to report its own problems. See {@link JvmPlatform} for server
+ * JVMs; the Android library provides the implementation based on the application context.
+ */
+public interface Platform {
+
+    /**
+     * Returns the directory of the local storage, the journal and the device id; it must exist.
+     */
+    File getFilesDir();
+
+    /**
+     * Returns the key of the current process, used to name its files when several processes of the
+     * application share the files directory: empty for the main process.
+     */
+    String getProcessKey();
+
+    /**
+     * Returns the device property (e.g. "ro.build.fingerprint"), used for the trace id and the host
+     * name; empty if it is not known.
+     */
+    String getDeviceProperty(String name);
+
+    /**
+     * Reports a problem (or a debug message) of the logger itself - not sent to Logentries.
+     *
+     * @param priority  one of {@link com.logentries.logger.LogPriority}.
+     * @param throwable may be null.
+     */
+    void log(int priority, String tag, String message, Throwable throwable);
+}
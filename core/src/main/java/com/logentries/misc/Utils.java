@@ -1,11 +1,8 @@
 package com.logentries.misc;
 
-import android.content.Context;
-import android.os.Build;
-import android.util.Log;
+import com.logentries.logger.LogPriority;
 
 import java.io.*;
-import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.Buffer;
@@ -30,35 +27,56 @@ public class Utils {
 
     private static String traceID = "";
     private static String hostName = "";
+    private static volatile boolean metadataResolved = false;
 
     private static String deviceId = null;
 
+    private static String processName = null;
+
     private static final String le_device_filename = "LogentriesLogStorage.dat";
 
-    public static synchronized String getDeviceId(Context c) {
+    private static volatile Platform platform = null;
+
+    /**
+     * Sets the platform the logger runs on; called when the logging worker is created.
+     */
+    public static void setPlatform(Platform platform) {
+        Utils.platform = platform;
+    }
+
+    /**
+     * Returns the platform the logger runs on, or null if it has not been set yet.
+     */
+    public static Platform getPlatform() {
+        return platform;
+    }
+
+    public static synchronized String getDeviceId(Platform platform) {
         if (deviceId == null)
-            readOrGenerateDeviceId(c);
+            readOrGenerateDeviceId(platform);
         return deviceId;
     }
 
-    private static synchronized void readOrGenerateDeviceId(Context c) {
+    private static synchronized void readOrGenerateDeviceId(Platform platform) {
+        File deviceIdFile = new File(platform.getFilesDir(), le_device_filename);
+
         // Attempt to read deviceId
         BufferedReader br = null;
         try {
-            br = new BufferedReader(new InputStreamReader(c.openFileInput(le_device_filename)));
+            br = new BufferedReader(new InputStreamReader(new FileInputStream(deviceIdFile)));
             deviceId = br.readLine();
-            Log.d(TAG, "Device id retrieved from file: " + deviceId);
+            Diagnostics.d(TAG, "Device id retrieved from file: " + deviceId);
 
             // Device id read, terminate
             return;
         } catch (IOException ex) {
-            Log.d(TAG, "Exception while reading the device id from file", ex);
+            Diagnostics.d(TAG, "Exception while reading the device id from file", ex);
         } finally {
             try {
                 if (br != null)
                     br.close();
             } catch (IOException ex) {
-                Log.e(TAG, "Exception while closing the device id file open in read mode", ex);
+                Diagnostics.e(TAG, "Exception while closing the device id file open in read mode", ex);
             }
         }
 
@@ -66,28 +84,37 @@ public class Utils {
         BufferedWriter bw = null;
         try {
             deviceId = UUID.randomUUID().toString();
-            bw = new BufferedWriter(new OutputStreamWriter(c.openFileOutput(le_device_filename, Context.MODE_PRIVATE)));
+            bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(deviceIdFile)));
             bw.write(deviceId);
 
-            Log.d(TAG, "Generated new deviceID: " + deviceId);
+            Diagnostics.d(TAG, "Generated new deviceID: " + deviceId);
         } catch (IOException ex) {
-            Log.e(TAG, "Exception while writing the device id to file", ex);
+            Diagnostics.e(TAG, "Exception while writing the device id to file", ex);
         } finally {
             try {
                 if (bw != null)
                     bw.close();
             } catch (IOException ex) {
-                Log.e(TAG, "Exception while closing the device id file open in write mode", ex);
+                Diagnostics.e(TAG, "Exception while closing the device id file open in write mode", ex);
             }
         }
     }
 
-    // Requires at least API level 9 (v. >= 2.3).
-    static {
+    /**
+     * Resolves host name and trace ID of the device. The lookups involve reflection, hashing and
+     * possibly a DNS query, so this is meant to be called from the logger's worker thread rather
+     * than on the class load; all getters fall back to it if the metadata is not resolved yet.
+     * Requires at least API level 9 (v. >= 2.3).
+     */
+    public static synchronized void resolveDeviceMetadata() {
+        if (metadataResolved) {
+            return;
+        }
+
         try {
             traceID = computeTraceID();
         } catch (NoSuchAlgorithmException ex) {
-            Log.e(TAG, "Cannot get traceID from device's properties!");
+            Diagnostics.e(TAG, "Cannot get traceID from device's properties!");
             traceID = "unknown";
         }
 
@@ -100,6 +127,8 @@ public class Utils {
         } catch (UnknownHostException e) {
             // We cannot resolve local host name - so won't use it at all.
         }
+
+        metadataResolved = true;
     }
 
     private static String getProp(String propertyName) {
@@ -108,13 +137,9 @@ public class Utils {
             return "";
         }
 
-        try {
-            Method getString = Build.class.getDeclaredMethod("getString", String.class);
-            getString.setAccessible(true);
-            return getString.invoke(null, propertyName).toString();
-        } catch (Exception ex) {
-            // Ignore the exception - we simply couldn't access the property;
-            Log.e(TAG, ex.getMessage());
+        Platform platform = Utils.platform;
+        if (platform != null) {
+            return platform.getDeviceProperty(propertyName);
         }
 
         return "";
@@ -130,7 +155,7 @@ public class Utils {
         MessageDigest hashGen = MessageDigest.getInstance("MD5");
         byte[] digest = null;
         if (fingerprint.isEmpty() & displayId.isEmpty() & hardware.isEmpty() & device.isEmpty() & rilImei.isEmpty()) {
-            Log.e(TAG, "Cannot obtain any of device's properties - will use default Trace ID source.");
+            Diagnostics.e(TAG, "Cannot obtain any of device's properties - will use default Trace ID source.");
 
             Double randomTrace = Math.random() + Math.PI;
             String defaultValue = randomTrace.toString();
@@ -159,6 +184,9 @@ public class Utils {
     }
 
     public static String getTraceID() {
+        if (!metadataResolved) {
+            resolveDeviceMetadata();
+        }
         return traceID;
     }
 
@@ -172,9 +200,9 @@ public class Utils {
 
     public static String getFormattedTraceID(boolean toJSON) {
         if (toJSON) {
-            return "\"TraceID\": \"" + traceID + "\"";
+            return "\"TraceID\": \"" + getTraceID() + "\"";
         }
-        return "TraceID=" + traceID;
+        return "TraceID=" + getTraceID();
     }
 
     public static String getFormattedTag(boolean toJSON, String tag) {
@@ -185,33 +213,36 @@ public class Utils {
     }
 
     public static String getHostName() {
+        if (!metadataResolved) {
+            resolveDeviceMetadata();
+        }
         return hostName;
     }
 
     public static String getFormattedHostName(boolean toJSON) {
         if (toJSON) {
-            return "\"Host\": \"" + hostName + "\"";
+            return "\"Host\": \"" + getHostName() + "\"";
         }
-        return "Host=" + hostName;
+        return "Host=" + getHostName();
     }
 
     public static String getFormattedLogLevel(boolean toJSON, int priority) {
         String level = "UNKNOWN";
 
         switch (priority) {
-            case Log.DEBUG:
+            case LogPriority.DEBUG:
                 level = "DEBUG";
                 break;
-            case Log.ERROR:
+            case LogPriority.ERROR:
                 level = "ERROR";
                 break;
-            case Log.INFO:
+            case LogPriority.INFO:
                 level = "INFO";
                 break;
-            case Log.VERBOSE:
+            case LogPriority.VERBOSE:
                 level = "VERBOSE";
                 break;
-            case Log.WARN:
+            case LogPriority.WARN:
                 level = "WARN";
                 break;
         }
@@ -247,7 +278,7 @@ public class Utils {
      * Host=SOMEHOST Timestamp=12345 DeviceID=DEV_ID MESSAGE
      *
      * @param message       Message to be sent to Logentries
-     * @param priority      Log-level (as in android.utils.Log class. E.g.: android.utils.Log.DEBUG)
+     * @param priority      Log-level (one of LogPriority, e.g. LogPriority.DEBUG)
      * @param logHostName   - if set to true - "Host"=HOSTNAME parameter is appended to the message.
      * @param isUsingHttp   will be using http
      * @param printTraceId  - if set to true will print the "TraceID"
@@ -258,6 +289,18 @@ public class Utils {
      */
     public static String formatMessage(String tag, String message, int priority, boolean logHostName, boolean isUsingHttp, boolean printTraceId,
                                        boolean printDeviceId, String deviceId, boolean printLogLevel) {
+        return formatMessage(tag, message, priority, System.currentTimeMillis(), logHostName, isUsingHttp, printTraceId,
+                printDeviceId, deviceId, printLogLevel);
+    }
+
+    /**
+     * Same as {@link #formatMessage(String, String, int, boolean, boolean, boolean, boolean, String, boolean)},
+     * but stamps the message with the given time instead of the current one.
+     *
+     * @param timestamp time in UTC in milliseconds when the message has been logged.
+     */
+    public static String formatMessage(String tag, String message, int priority, long timestamp, boolean logHostName, boolean isUsingHttp,
+                                       boolean printTraceId, boolean printDeviceId, String deviceId, boolean printLogLevel) {
         StringBuilder sb = new StringBuilder();
 
         if (isUsingHttp) {
@@ -288,7 +331,6 @@ public class Utils {
         sb.append(Utils.getFormattedTag(isUsingHttp, tag)).append(" ");
         sb.append(isUsingHttp ? ", " : " ");
 
-        long timestamp = System.currentTimeMillis(); // Current time in UTC in milliseconds.
         if (isUsingHttp) {
             sb.append("\"Timestamp\": ").append(Long.toString(timestamp)).append(", ");
         } else {
@@ -312,6 +354,48 @@ public class Utils {
         return sb.toString();
     }
 
+    /**
+     * Returns the name of the current process (e.g. "com.example.app:sync" for a service running in
+     * its own process), or an empty string if it cannot be read.
+     */
+    public static synchronized String getProcessName() {
+        if (processName == null) {
+            processName = readProcessName();
+        }
+        return processName;
+    }
+
+    private static String readProcessName() {
+        InputStream input = null;
+        try {
+            input = new FileInputStream("/proc/self/cmdline");
+            byte[] buffer = new byte[256];
+            int length = 0;
+            int read;
+            while (length < buffer.length && (read = input.read(buffer, length, buffer.length - length)) > 0) {
+                length += read;
+            }
+
+            // The arguments are separated with zero bytes.
+            int end = 0;
+            while (end < length && buffer[end] != 0) {
+                end++;
+            }
+            return new String(buffer, 0, end, "UTF-8").trim();
+        } catch (IOException ex) {
+            Diagnostics.e(TAG, "Cannot read the process name: " + ex.getMessage());
+            return "";
+        } finally {
+            try {
+                if (input != null) {
+                    input.close();
+                }
+            } catch (IOException ex2) {
+                // Ignore - nothing to do.
+            }
+        }
+    }
+
     public static boolean checkValidUUID(String uuid) {
         if (uuid != null && !uuid.isEmpty()) {
             try {
@@ -0,0 +1,183 @@
+package com.logentries.net;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.List;
+
+/**
+ * Fire-and-forget token-based input over UDP, meant for high-volume, loss-tolerant logging to a DataHub.
+ * <p>
+ * Token-prefixed lines are packed into datagrams of up to {@code maxDatagramSize} bytes, so a batch
+ * costs a few sends instead of a write and a flush per line. There is no connection state - nothing
+ * is acknowledged and nothing needs to be re-established, lost datagrams are simply lost. A line that
+ * does not fit into a datagram on its own is sent alone, truncated to the max. UDP payload if needed.
+ */
+public class DatagramTransport implements LogTransport {
+
+    /**
+     * Datagram size, which fits into the usual 1500 bytes Ethernet MTU with IP and UDP headers.
+     */
+    public static final int DEFAULT_MAX_DATAGRAM_SIZE = 1400;
+
+    private static final int MAX_UDP_PAYLOAD = 65507;
+
+    private final String address;
+    private final int port;
+    private final byte[] tokenPrefix;
+
+    private final CharsetEncoder encoder = TokenTcpTransport.UTF8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private final ByteBuffer datagram; // Lines waiting to be sent.
+    private ByteBuffer line;           // The line being packed, grows up to MAX_UDP_PAYLOAD.
+
+    private DatagramSocket socket;
+    private DatagramPacket packet;
+    private boolean healthy = false;
+
+    public DatagramTransport(String address, int port, String token) {
+        this(address, port, token, DEFAULT_MAX_DATAGRAM_SIZE);
+    }
+
+    public DatagramTransport(String address, int port, String token, int maxDatagramSize) {
+        if (maxDatagramSize <= 0 || maxDatagramSize > MAX_UDP_PAYLOAD) {
+            throw new IllegalArgumentException("maxDatagramSize must be greater than zero and not greater than " +
+                    MAX_UDP_PAYLOAD);
+        }
+
+        this.address = address;
+        this.port = port;
+        this.tokenPrefix = (token + " ").getBytes(TokenTcpTransport.UTF8);
+        if (maxDatagramSize <= tokenPrefix.length + 1) {
+            // There must be room for at least one byte of the line, besides the token and the line end.
+            throw new IllegalArgumentException("maxDatagramSize must be greater than the token length + 2");
+        }
+        this.datagram = ByteBuffer.allocate(maxDatagramSize);
+        this.line = ByteBuffer.allocate(maxDatagramSize);
+    }
+
+    @Override
+    public void connect() throws IOException {
+        InetSocketAddress target = new InetSocketAddress(address, port);
+        if (target.isUnresolved()) {
+            throw new IOException("Cannot resolve " + address);
+        }
+
+        close();
+        socket = new DatagramSocket();
+        packet = new DatagramPacket(datagram.array(), 0, target);
+        datagram.clear();
+        healthy = true;
+    }
+
+    @Override
+    public void write(List<String> batch) throws IOException {
+        if (socket == null) {
+            throw new IOException("DatagramSocket is not initialized!");
+        }
+
+        for (String data : batch) {
+            encodeLine(data);
+            if (line.position() > datagram.remaining()) {
+                sendDatagram();
+            }
+
+            if (line.position() > datagram.capacity()) {
+                // Too long for a packed datagram - send it alone.
+                send(line.array(), line.position());
+            } else {
+                datagram.put(line.array(), 0, line.position());
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (socket == null) {
+            throw new IOException("DatagramSocket is not initialized!");
+        }
+        sendDatagram();
+    }
+
+    @Override
+    public void close() {
+        healthy = false;
+        if (socket != null) {
+            socket.close();
+            socket = null;
+        }
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    @Override
+    public boolean requiresJsonFormat() {
+        return false;
+    }
+
+    /**
+     * Encodes the token-prefixed line into the line buffer, ending it with '\n'.
+     */
+    private void encodeLine(String data) {
+        line.clear();
+        line.put(tokenPrefix);
+
+        CharBuffer chars = CharBuffer.wrap(data);
+        boolean truncated = false;
+        encoder.reset();
+        while (true) {
+            // Leave room for the line end.
+            line.limit(line.capacity() - 1);
+            CoderResult result = encoder.encode(chars, line, true);
+            if (!result.isOverflow()) {
+                encoder.flush(line);
+                break;
+            }
+            if (line.capacity() >= MAX_UDP_PAYLOAD) {
+                // Truncate the line - it doesn't fit even into the biggest datagram.
+                truncated = true;
+                break;
+            }
+            ByteBuffer grown = ByteBuffer.allocate(Math.min(line.capacity() * 2, MAX_UDP_PAYLOAD));
+            line.flip();
+            grown.put(line);
+            line = grown;
+        }
+
+        line.limit(line.capacity());
+        if (truncated || !data.endsWith("\n")) {
+            line.put((byte) '\n');
+        }
+    }
+
+    private void sendDatagram() throws IOException {
+        if (datagram.position() > 0) {
+            try {
+                send(datagram.array(), datagram.position());
+            } finally {
+                datagram.clear();
+            }
+        }
+    }
+
+    private void send(byte[] data, int length) throws IOException {
+        packet.setData(data, 0, length);
+        try {
+            socket.send(packet);
+        } catch (IOException ex) {
+            healthy = false;
+            throw ex;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.logentries.net;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.logentries.misc.Diagnostics;
+
+/**
+ * HTTP POST input - each message is posted to the endpoint URL as a separate request.
+ * <p>
+ * When the server throttles (429 Too Many Requests or 503 Service Unavailable), the transport throws
+ * {@link ThrottledException} with the time given by the Retry-After header, so the messages not
+ * accepted can be sent again later. The send rate adapts to the throttling (AIMD): it is halved
+ * on each throttled request and grows back by {@link #RATE_INCREASE} messages per second every second
+ * of successful sending, until the server does not limit it any more.
+ * <p>
+ * The transport never waits itself: while the rate is limited, it throws {@link ThrottledException}
+ * with the time until it may send again also after a batch, which has been sent completely, and
+ * rejects a batch written before that time as a whole.
+ */
+public class HttpPostTransport implements LogTransport {
+
+    private static final String TAG = "LogentriesAndroidLogger";
+
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    private static final int SC_SERVICE_UNAVAILABLE = 503;
+
+    /**
+     * Wait before sending again, if the throttling response has no Retry-After header.
+     */
+    public static final long DEFAULT_RETRY_AFTER = 1000; // milliseconds.
+    private static final long MAX_RETRY_AFTER = 5 * 60 * 1000; // milliseconds.
+
+    /**
+     * Send rates (in messages per second), to which the transport falls back once throttled, and
+     * starting from which it is not limited any more.
+     */
+    public static final double INITIAL_THROTTLED_RATE = 10;
+    public static final double MAX_THROTTLED_RATE = 1000;
+    public static final double MIN_RATE = 0.5;
+    public static final double RATE_INCREASE = 1;
+
+    private final String url;
+
+    private HttpClient httpClient;      // HTTP client, used for communicating with HTTP API endpoint.
+    private HttpPost postRequest;       // Request object, used to forward data put requests.
+    private boolean healthy = false;
+
+    // Max. messages per second; infinity when the server hasn't throttled.
+    private double rate = Double.POSITIVE_INFINITY;
+    private long nextSendTime = 0;
+
+    public HttpPostTransport(String url) {
+        this.url = url;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        httpClient = new DefaultHttpClient();
+        postRequest = new HttpPost(url);
+        healthy = true;
+    }
+
+    @Override
+    public void write(List<String> batch) throws IOException {
+        if (postRequest == null) {
+            throw new IOException("HTTP client is not initialized!");
+        }
+
+        long delay = nextSendTime - System.currentTimeMillis();
+        if (delay > 0) {
+            throw new ThrottledException("The send rate is limited to " + rate + " messages per second", 0, delay);
+        }
+
+        try {
+            int sentCount = 0;
+            for (String data : batch) {
+                postRequest.setEntity(new StringEntity(data, "UTF8"));
+                HttpResponse response = httpClient.execute(postRequest);
+                int statusCode = response.getStatusLine().getStatusCode();
+                long retryAfter = getRetryAfter(response);
+                consume(response);
+
+                if (statusCode == SC_TOO_MANY_REQUESTS || statusCode == SC_SERVICE_UNAVAILABLE) {
+                    throttle(retryAfter);
+                    throw new ThrottledException("Throttled by the server, status code: " + statusCode,
+                            sentCount, nextSendTime - System.currentTimeMillis());
+                } else if (statusCode >= 500) {
+                    throw new IOException("Server error, status code: " + statusCode);
+                } else if (statusCode >= 400) {
+                    // The message won't be accepted if sent again - drop it.
+                    Diagnostics.e(TAG, "Received status code:" + statusCode + " - the log message is dropped.");
+                }
+
+                onSent();
+                ++sentCount;
+            }
+
+            delay = nextSendTime - System.currentTimeMillis();
+            if (delay > 0) {
+                throw new ThrottledException("The send rate is limited to " + rate + " messages per second",
+                        sentCount, delay);
+            }
+        } catch (ThrottledException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            healthy = false;
+            throw ex;
+        }
+    }
+
+    @Override
+    public void flush() {
+        // Messages are posted right away.
+    }
+
+    @Override
+    public void close() {
+        healthy = false;
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    @Override
+    public boolean requiresJsonFormat() {
+        return true;
+    }
+
+    /**
+     * Current send rate limit in messages per second, infinity if not limited.
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    private void throttle(long retryAfter) {
+        rate = Double.isInfinite(rate) ? INITIAL_THROTTLED_RATE : Math.max(MIN_RATE, rate / 2);
+        nextSendTime = System.currentTimeMillis() + Math.max(retryAfter, (long) (1000 / rate));
+    }
+
+    private void onSent() {
+        if (Double.isInfinite(rate)) {
+            return;
+        }
+
+        // One message takes 1/rate seconds, so the rate grows by RATE_INCREASE each second.
+        rate += RATE_INCREASE / rate;
+        if (rate >= MAX_THROTTLED_RATE) {
+            rate = Double.POSITIVE_INFINITY;
+            nextSendTime = 0;
+        } else {
+            nextSendTime = Math.max(nextSendTime, System.currentTimeMillis()) + (long) (1000 / rate);
+        }
+    }
+
+    /**
+     * Reads the Retry-After header - either the delay in seconds, or the date.
+     */
+    private static long getRetryAfter(HttpResponse response) {
+        Header header = response.getFirstHeader("Retry-After");
+        if (header == null || header.getValue() == null) {
+            return DEFAULT_RETRY_AFTER;
+        }
+
+        String value = header.getValue().trim();
+        long retryAfter;
+        try {
+            retryAfter = Long.parseLong(value) * 1000;
+        } catch (NumberFormatException ex) {
+            try {
+                retryAfter = DateUtils.parseDate(value).getTime() - System.currentTimeMillis();
+            } catch (DateParseException ex2) {
+                return DEFAULT_RETRY_AFTER;
+            }
+        }
+        return Math.min(MAX_RETRY_AFTER, Math.max(0, retryAfter));
+    }
+
+    /**
+     * Reads the rest of the response, so the connection can be used for the next request.
+     */
+    private static void consume(HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            EntityUtils.consume(entity);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.logentries.net;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transport, which does not send anything - it only counts (and optionally keeps) the messages.
+ * Useful to measure the throughput of the logging pipeline without network costs, and to simulate
+ * a broken connection with {@link #setFailing(boolean)}.
+ * <p>
+ * The instance is the factory - each appender gets its own connection, the counters are shared.
+ */
+public class InMemoryTransport implements LogTransport.Factory {
+
+    private final boolean keepMessages;
+    private final List<String> messages = new ArrayList<>();
+
+    private final AtomicLong messageCount = new AtomicLong();
+    private final AtomicLong charCount = new AtomicLong();
+    private final AtomicLong flushCount = new AtomicLong();
+
+    private volatile boolean failing = false;
+
+    /**
+     * @param keepMessages if set to true, all written messages are kept and can be read with
+     *                     {@link #getMessages()}; otherwise they are only counted.
+     */
+    public InMemoryTransport(boolean keepMessages) {
+        this.keepMessages = keepMessages;
+    }
+
+    @Override
+    public LogTransport createTransport() {
+        return new Connection();
+    }
+
+    /**
+     * Makes all further connects and writes fail (or succeed again).
+     */
+    public void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    public long getMessageCount() {
+        return messageCount.get();
+    }
+
+    public long getCharCount() {
+        return charCount.get();
+    }
+
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    public List<String> getMessages() {
+        synchronized (messages) {
+            return new ArrayList<>(messages);
+        }
+    }
+
+    private class Connection implements LogTransport {
+
+        private volatile boolean connected = false;
+
+        @Override
+        public void connect() throws IOException {
+            if (failing) {
+                throw new IOException("In-memory transport is set to fail");
+            }
+            connected = true;
+        }
+
+        @Override
+        public void write(List<String> batch) throws IOException {
+            if (failing || !connected) {
+                connected = false;
+                throw new IOException("In-memory transport is not connected");
+            }
+
+            for (String data : batch) {
+                charCount.addAndGet(data.length());
+            }
+            messageCount.addAndGet(batch.size());
+            if (keepMessages) {
+                synchronized (messages) {
+                    messages.addAll(batch);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (failing || !connected) {
+                connected = false;
+                throw new IOException("In-memory transport is not connected");
+            }
+            flushCount.incrementAndGet();
+        }
+
+        @Override
+        public void close() {
+            connected = false;
+        }
+
+        @Override
+        public boolean isHealthy() {
+            return connected && !failing;
+        }
+
+        @Override
+        public boolean requiresJsonFormat() {
+            return false;
+        }
+    }
+}
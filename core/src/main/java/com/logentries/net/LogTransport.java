@@ -0,0 +1,55 @@
+package com.logentries.net;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Connection, over which the socket appender sends log messages.
+ * <p>
+ * A transport is used by one appender thread only, so implementations need not be thread-safe.
+ */
+public interface LogTransport {
+
+    /**
+     * Creates transports; called by the appender each time it needs a new one.
+     */
+    interface Factory {
+
+        /**
+         * @throws InstantiationException if the transport cannot be created due to improper configuration
+         *                                - the appender stops then.
+         */
+        LogTransport createTransport() throws InstantiationException;
+    }
+
+    /**
+     * Opens the connection. May be called again to re-connect - the previous connection is closed
+     * then - also after {@link #close()}.
+     */
+    void connect() throws IOException;
+
+    /**
+     * Writes a batch of formatted log messages. They may be buffered until {@link #flush()}.
+     */
+    void write(List<String> batch) throws IOException;
+
+    /**
+     * Sends all buffered messages.
+     */
+    void flush() throws IOException;
+
+    /**
+     * Closes the connection, when the appender stops; never throws.
+     */
+    void close();
+
+    /**
+     * @return true if the transport is connected and the last operation on it has succeeded.
+     */
+    boolean isHealthy();
+
+    /**
+     * @return true if the messages must be formatted as JSON events, like for the HTTP input.
+     */
+    boolean requiresJsonFormat();
+}
@@ -0,0 +1,154 @@
+package com.logentries.net;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Creates the transport for the Logentries endpoints (or the DataHub) from the logger settings:
+ * {@link HttpPostTransport} for the HTTP input, {@link TokenTcpTransport} for the token-based input,
+ * {@link DatagramTransport} for the token-based input over UDP (DataHub only).
+ */
+public class LogentriesClient implements LogTransport.Factory {
+    // Logentries server endpoints for logs data.
+    private static final String LE_TOKEN_API = "data.logentries.com"; // For token-based stream input
+
+    private static final String LE_HTTP_API = "http://webhook.logentries.com/noformat/logs/";   // For HTTP-based input.
+    private static final String LE_HTTPS_API = "https://webhook.logentries.com/noformat/logs/";   // For HTTP-based input.
+
+    // Port number for unencrypted HTTP PUT/Token TCP logging on Logentries server.
+    private static final int LE_PORT = 80;
+
+    // Port number for SSL HTTP PUT/TLS Token TCP logging on Logentries server.
+    private static final int LE_SSL_PORT = 443;
+
+    // How long TLS sessions are kept for resumption, in seconds.
+    private static final int TLS_SESSION_TIMEOUT = 8 * 60 * 60;
+
+    private String endpointToken;   // Token, that points to the exact endpoint - the log object, where the data goes.
+
+    private boolean sslChoice = false;  // Use SSL layering for the Socket?
+    private boolean httpChoice = false; // Use HTTP input instead of token-based stream input?
+
+    // Datahub-related attributes.
+    private String dataHubServer = null;
+    private int dataHubPort = 0;
+    private boolean useDataHub = false;
+    private boolean udpChoice = false; // Send to the DataHub over UDP?
+
+    private boolean standbyChoice = false; // Keep a standby connection ready?
+
+    // Shared by all transports of the client, so that they resume each other's TLS sessions.
+    private SSLSocketFactory sslFactory = null;
+
+    public LogentriesClient(boolean useHttpPost, boolean useSsl, boolean isUsingDataHub, String server, int port,
+                            String token) {
+        this(useHttpPost, useSsl, isUsingDataHub, server, port, token, false);
+    }
+
+    /**
+     * The settings are validated when the transport is created - i.e. on the appender's thread.
+     *
+     * @param useUdp if set to true, logs are sent to the DataHub as UDP datagrams - without any delivery
+     *               guarantee, but at a much lower cost. Requires isUsingDataHub and cannot be used with SSL.
+     */
+    public LogentriesClient(boolean useHttpPost, boolean useSsl, boolean isUsingDataHub, String server, int port,
+                            String token, boolean useUdp) {
+        udpChoice = useUdp;
+        useDataHub = isUsingDataHub;
+        sslChoice = useSsl;
+        httpChoice = useHttpPost;
+        endpointToken = token;
+        dataHubServer = server;
+        dataHubPort = port;
+    }
+
+    /**
+     * If set to true, token-based TCP transports keep a standby connection ready to replace a broken
+     * one. It saves the connect (and the TLS handshake) on reconnects at the cost of an extra idle
+     * connection, opened after each connect and kept for up to {@link TokenTcpTransport#STANDBY_MAX_IDLE}.
+     * Must be set before the transports are created.
+     */
+    public void setUseStandbyConnection(boolean useStandby) {
+        standbyChoice = useStandby;
+    }
+
+    public boolean getUseStandbyConnection() {
+        return standbyChoice;
+    }
+
+    public int getPort() {
+        if (useDataHub) {
+            return dataHubPort;
+        } else {
+            return sslChoice ? LE_SSL_PORT : LE_PORT;
+        }
+    }
+
+    public String getAddress() {
+        if (useDataHub) {
+            return dataHubServer;
+        } else {
+            if (httpChoice) {
+                return sslChoice ? LE_HTTPS_API : LE_HTTP_API;
+            }
+            return LE_TOKEN_API;
+        }
+    }
+
+    @Override
+    public synchronized LogTransport createTransport() throws InstantiationException, IllegalArgumentException {
+        if (httpChoice && useDataHub) {
+            throw new IllegalArgumentException("'httpPost' parameter cannot be set to true if 'isUsingDataHub' " +
+                    "is set to true.");
+        }
+
+        if (udpChoice && (!useDataHub || sslChoice)) {
+            throw new IllegalArgumentException("'useUdp' parameter can only be set to true if 'isUsingDataHub' " +
+                    "is set to true and 'useSsl' is set to false.");
+        }
+
+        if (endpointToken == null || endpointToken.isEmpty()) {
+            throw new IllegalArgumentException("Token parameter cannot be empty!");
+        }
+
+        if (useDataHub) {
+            if (dataHubServer == null || dataHubServer.isEmpty()) {
+                throw new InstantiationException("'server' parameter is mandatory if 'isUsingDatahub' parameter " +
+                        "is set to true.");
+            }
+            if (dataHubPort <= 0 || dataHubPort > 65535) {
+                throw new InstantiationException("Incorrect port number " + Integer.toString(dataHubPort) + ". Port number must " +
+                        "be greater than zero and less than 65535.");
+            }
+        }
+
+        if (httpChoice) {
+            return new HttpPostTransport(getAddress() + endpointToken);
+        }
+
+        if (udpChoice) {
+            return new DatagramTransport(getAddress(), getPort(), endpointToken);
+        }
+
+        if (sslChoice && sslFactory == null) {
+            try {
+                sslFactory = createSslFactory();
+            } catch (Exception e) {
+                throw new InstantiationException("Cannot create LogentriesClient instance. Error: " + e.getMessage());
+            }
+        }
+        return new TokenTcpTransport(getAddress(), getPort(), endpointToken, sslChoice ? sslFactory : null,
+                standbyChoice);
+    }
+
+    /**
+     * Creates the SSL socket factory with its own client session cache, so reconnects resume the
+     * previous TLS session (an abbreviated handshake) instead of doing the full one.
+     */
+    private static SSLSocketFactory createSslFactory() throws Exception {
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, null, null);
+        sslContext.getClientSessionContext().setSessionTimeout(TLS_SESSION_TIMEOUT);
+        return sslContext.getSocketFactory();
+    }
+}
@@ -0,0 +1,35 @@
+package com.logentries.net;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a transport when the server asks to slow down (e.g. HTTP 429 or 503), or when the transport
+ * paces its sending. The connection itself is fine - the messages not accepted should be sent again
+ * later, and nothing should be written before retryAfter has passed. All messages of the batch may
+ * have been accepted, if the transport only asks to wait before the next one.
+ */
+public class ThrottledException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int sentCount;
+    private final long retryAfter;
+
+    /**
+     * @param sentCount  number of messages from the beginning of the batch, which have been accepted.
+     * @param retryAfter time in milliseconds to wait before sending again.
+     */
+    public ThrottledException(String message, int sentCount, long retryAfter) {
+        super(message);
+        this.sentCount = sentCount;
+        this.retryAfter = retryAfter;
+    }
+
+    public int getSentCount() {
+        return sentCount;
+    }
+
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
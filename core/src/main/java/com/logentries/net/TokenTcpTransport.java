@@ -0,0 +1,269 @@
+package com.logentries.net;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Token-based stream input over TCP (optionally over TLS/SSL) - used both for the Logentries
+ * endpoint and for the DataHub. Each message is prefixed with the endpoint token and ends with '\n'.
+ * <p>
+ * Optionally a standby connection is kept ready: it is opened (and handshaken) in the background
+ * after each successful connect - the first one included - so when the active connection breaks, the
+ * next connect just takes it over instead of stalling the appender. An unused standby connection is
+ * closed after {@link #STANDBY_MAX_IDLE} and not reopened until the next connect - a stable connection
+ * doesn't keep one for long, and a flapping one gets it back on each reconnect.
+ */
+public class TokenTcpTransport implements LogTransport {
+
+    // Size of the buffer, that collects a batch of messages before it is written to the socket.
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Max. time in milliseconds a standby connection is kept unused - idle connections are
+     * dropped by NATs and proxies sooner or later.
+     */
+    public static final long STANDBY_MAX_IDLE = 30000;
+
+    private final String address;
+    private final int port;
+    private final String endpointToken; // Token, that points to the exact endpoint - the log object, where the data goes.
+    private final SSLSocketFactory sslFactory; // Null, if SSL is not used.
+    private final boolean useStandby;
+
+    private Socket socket;              // The socket, connected to the Token API endpoint.
+    private OutputStream stream;        // Data stream to the endpoint, where log messages go.
+    private boolean healthy = false;
+
+    private final Object standbyLock = new Object();
+    private Socket standby;             // Connection opened in the background, ready to be taken over.
+    private Thread keeper;              // Thread opening or keeping the standby connection, if any.
+    private boolean closed = false;     // Whether the transport has been closed - no standby is kept then.
+
+    // The formatter used to prepend logs with the endpoint token.
+    private StringBuilder streamFormatter = new StringBuilder();
+
+    public TokenTcpTransport(String address, int port, String token, SSLSocketFactory sslFactory) {
+        this(address, port, token, sslFactory, false);
+    }
+
+    /**
+     * @param sslFactory   factory for the TLS/SSL sockets or null, if SSL is not used. TLS sessions are
+     *                     resumed on reconnects if the factory caches them.
+     * @param useStandby   if set to true, a standby connection is opened after each connect, ready to
+     *                     replace the active one for up to {@link #STANDBY_MAX_IDLE}.
+     */
+    public TokenTcpTransport(String address, int port, String token, SSLSocketFactory sslFactory,
+                             boolean useStandby) {
+        this.address = address;
+        this.port = port;
+        this.endpointToken = token;
+        this.sslFactory = sslFactory;
+        this.useStandby = useStandby;
+    }
+
+    /**
+     * Opens the connection, or replaces the current one - with the standby connection, if it is ready.
+     */
+    @Override
+    public void connect() throws IOException {
+        closeSocket();
+        synchronized (standbyLock) {
+            closed = false;
+        }
+
+        Socket s = takeStandby();
+        socket = s != null ? s : openSocket();
+        stream = new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE);
+        healthy = true;
+
+        if (useStandby) {
+            warmUpStandby();
+        }
+    }
+
+    @Override
+    public void write(List<String> batch) throws IOException {
+        if (stream == null) {
+            throw new IOException("OutputStream is not initialized!");
+        }
+
+        try {
+            for (String data : batch) {
+                streamFormatter.setLength(0); // Erase all previous data.
+                streamFormatter.append(endpointToken).append(" ");
+                streamFormatter.append(data);
+                // For Token-based input it is mandatory for the message to has '\n' at the end to be
+                // ingested by the endpoint correctly.
+                if (!data.endsWith("\n")) {
+                    streamFormatter.append("\n");
+                }
+                stream.write(streamFormatter.toString().getBytes(UTF8));
+            }
+        } catch (IOException ex) {
+            healthy = false;
+            throw ex;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (stream == null) {
+            throw new IOException("OutputStream is not initialized!");
+        }
+
+        try {
+            stream.flush();
+        } catch (IOException ex) {
+            healthy = false;
+            throw ex;
+        }
+    }
+
+    /**
+     * Closes the connection and the standby one.
+     */
+    @Override
+    public void close() {
+        closeSocket();
+        synchronized (standbyLock) {
+            closed = true;
+            if (standby != null) {
+                closeQuietly(standby);
+                standby = null;
+            }
+            // Stops the warm-up thread keeping it.
+            standbyLock.notifyAll();
+        }
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    @Override
+    public boolean requiresJsonFormat() {
+        return false;
+    }
+
+    private void closeSocket() {
+        healthy = false;
+        if (socket != null) {
+            closeQuietly(socket);
+            socket = null;
+            stream = null;
+        }
+    }
+
+    private Socket openSocket() throws IOException {
+        Socket s = new Socket(address, port);
+        if (sslFactory == null) {
+            return s;
+        }
+
+        try {
+            // The host and port are passed, so the factory can look up a session to resume.
+            SSLSocket sslSocket = (SSLSocket) sslFactory.createSocket(s, address, port, true);
+            sslSocket.setTcpNoDelay(true);
+            // Handshake now rather than on the first write, so a failure shows up as a failed connect.
+            sslSocket.startHandshake();
+            return sslSocket;
+        } catch (IOException ex) {
+            closeQuietly(s);
+            throw ex;
+        }
+    }
+
+    /**
+     * Takes over the standby connection, if there is one and it has not been closed.
+     */
+    private Socket takeStandby() {
+        synchronized (standbyLock) {
+            Socket s = standby;
+            if (s != null) {
+                // The keeper is done with it - the next warm-up starts a new one.
+                standby = null;
+                keeper = null;
+            }
+            standbyLock.notifyAll();
+            return s != null && !s.isClosed() ? s : null;
+        }
+    }
+
+    /**
+     * Starts opening the standby connection in the background, unless there is one already.
+     */
+    private void warmUpStandby() {
+        Thread warmUp;
+        synchronized (standbyLock) {
+            if (keeper != null) {
+                return;
+            }
+            warmUp = new Thread("Logentries standby connection") {
+                @Override
+                public void run() {
+                    keepStandby();
+                }
+            };
+            keeper = warmUp;
+        }
+
+        warmUp.setDaemon(true);
+        warmUp.start();
+    }
+
+    private void keepStandby() {
+        Socket s = null;
+        try {
+            s = openSocket();
+        } catch (IOException ex) {
+            // Nothing to do - the next connect opens the connection itself.
+        }
+
+        synchronized (standbyLock) {
+            boolean kept = false;
+            try {
+                if (s != null && !closed && keeper == Thread.currentThread()) {
+                    standby = s;
+                    kept = true;
+                    long deadline = System.currentTimeMillis() + STANDBY_MAX_IDLE;
+                    long remaining = STANDBY_MAX_IDLE;
+                    while (standby == s && remaining > 0) {
+                        standbyLock.wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                // Just stop keeping the connection.
+            } finally {
+                // Unless it has been taken over, or closed by close().
+                if (standby == s && s != null) {
+                    standby = null;
+                    closeQuietly(s);
+                } else if (s != null && !kept) {
+                    closeQuietly(s);
+                }
+                if (keeper == Thread.currentThread()) {
+                    keeper = null;
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket s) {
+        try {
+            s.close();
+        } catch (IOException e) {
+            // Just hide the exception - we cannot throw here.
+        }
+    }
+}
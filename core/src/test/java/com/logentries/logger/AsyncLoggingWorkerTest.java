@@ -0,0 +1,310 @@
+package com.logentries.logger;
+
+import com.logentries.misc.JvmPlatform;
+import com.logentries.net.InMemoryTransport;
+import com.logentries.net.LogTransport;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncLoggingWorkerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Keeps the appender connecting, so nothing is taken from the queue.
+    private final CountDownLatch connected = new CountDownLatch(1);
+    private final LogTransport.Factory blockedTransport = new LogTransport.Factory() {
+        @Override
+        public LogTransport createTransport() {
+            return new LogTransport() {
+                @Override
+                public void connect() throws IOException {
+                    try {
+                        connected.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException("Interrupted while connecting");
+                    }
+                }
+
+                @Override
+                public void write(List<String> batch) {
+                }
+
+                @Override
+                public void flush() {
+                }
+
+                @Override
+                public void close() {
+                }
+
+                @Override
+                public boolean isHealthy() {
+                    return true;
+                }
+
+                @Override
+                public boolean requiresJsonFormat() {
+                    return false;
+                }
+            };
+        }
+    };
+
+    private AsyncLoggingWorker worker;
+
+    @After
+    public void closeWorker() {
+        connected.countDown();
+        if (worker != null) {
+            worker.close(2000);
+        }
+    }
+
+    @Test
+    public void chunksOfConcurrentLinesStayContiguous() throws Exception {
+        final InMemoryTransport transport = new InMemoryTransport(true);
+        worker = createWorker(transport);
+        worker.setOverflowPolicy(OverflowPolicy.BLOCK);
+        worker.setBlockTimeout(60000);
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; ++t) {
+            final char c = (char) ('a' + t);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    char[] line = new char[3 * AsyncLoggingWorker.LOG_LENGTH_LIMIT];
+                    Arrays.fill(line, c);
+                    for (int i = 0; i < 25; ++i) {
+                        worker.addLineToQueue(LogPriority.INFO, "tag", new String(line));
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int expected = threads.length * 25 * 3;
+        for (int i = 0; i < 500 && transport.getMessageCount() < expected; ++i) {
+            Thread.sleep(10);
+        }
+
+        List<String> messages = transport.getMessages();
+        assertEquals(expected, messages.size());
+        for (int i = 0; i < messages.size(); i += 3) {
+            char c = lastChar(messages.get(i));
+            assertEquals(c, lastChar(messages.get(i + 1)));
+            assertEquals(c, lastChar(messages.get(i + 2)));
+        }
+    }
+
+    @Test
+    public void linesAreRejectedAllOrNothingWithDropNewest() throws Exception {
+        worker = createWorker(blockedTransport);
+        worker.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+        fillQueue(5, 10);
+
+        assertFalse(worker.tryAddLinesToQueue(LogPriority.INFO, "tag", lines(10)));
+        assertEquals(5, worker.getQueuedCount());
+        assertTrue(worker.tryAddLinesToQueue(LogPriority.INFO, "tag", lines(5)));
+        assertEquals(10, worker.getQueuedCount());
+    }
+
+    @Test
+    public void linesAreRejectedAllOrNothingAfterBlockTimeout() throws Exception {
+        worker = createWorker(blockedTransport);
+        worker.setOverflowPolicy(OverflowPolicy.BLOCK);
+        worker.setBlockTimeout(100);
+        fillQueue(5, 10);
+
+        long start = System.currentTimeMillis();
+        assertFalse(worker.tryAddLinesToQueue(LogPriority.INFO, "tag", lines(10)));
+        assertTrue(System.currentTimeMillis() - start >= 90);
+        assertEquals(5, worker.getQueuedCount());
+    }
+
+    @Test
+    public void linesOverCapacityAreRejectedWithoutDrops() throws Exception {
+        worker = createWorker(blockedTransport);
+        worker.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+        worker.setMaxQueueBytes(Long.MAX_VALUE);
+        for (int i = 0; i < 5; ++i) {
+            worker.addLineToQueue(LogPriority.INFO, "tag", "x");
+        }
+
+        assertFalse(worker.tryAddLinesToQueue(LogPriority.INFO, "tag", lines(40000)));
+        assertEquals(5, worker.getQueuedCount());
+    }
+
+    @Test
+    public void backlogIsSentOnceAfterLiveLogsBreakConnection() throws Exception {
+        File dir = folder.newFolder();
+        LogStorage storage = new LogStorage(dir, "");
+        for (int i = 0; i < 100; ++i) {
+            storage.putLogToStorage(new LogItem(LogPriority.INFO, "tag", "[backlog " + i + "]"));
+        }
+        storage.close();
+
+        // The live log fails until the connection is considered broken - with a backlog batch read meanwhile.
+        final AtomicInteger liveFailures = new AtomicInteger(4);
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        worker = createWorker(dir, new LogTransport.Factory() {
+            @Override
+            public LogTransport createTransport() {
+                return new LogTransport() {
+                    @Override
+                    public void connect() throws IOException {
+                        try {
+                            connected.await();
+                        } catch (InterruptedException e) {
+                            throw new IOException("Interrupted while connecting");
+                        }
+                    }
+
+                    @Override
+                    public void write(List<String> batch) throws IOException {
+                        if (batch.toString().contains("[live]") && liveFailures.getAndDecrement() > 0) {
+                            throw new IOException("Connection reset");
+                        }
+                        received.addAll(batch);
+                    }
+
+                    @Override
+                    public void flush() {
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+
+                    @Override
+                    public boolean isHealthy() {
+                        return true;
+                    }
+
+                    @Override
+                    public boolean requiresJsonFormat() {
+                        return false;
+                    }
+                };
+            }
+        });
+        worker.addLineToQueue(LogPriority.INFO, "tag", "[live]");
+        connected.countDown();
+
+        for (int i = 0; i < 500 && received.size() < 101; ++i) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(300);
+
+        assertEquals(101, received.size());
+        assertEquals(1, countOf(received, "[live]"));
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(1, countOf(received, "[backlog " + i + "]"));
+        }
+    }
+
+    @Test
+    public void journalIsOpenedByAppender() throws Exception {
+        File dir = folder.newFolder();
+        final List<Runnable> tasks = new ArrayList<>();
+        worker = new AsyncLoggingWorker(new JvmPlatform(dir, "", Integer.MAX_VALUE), blockedTransport,
+                false, false, "dev", false, false, true, 1, new Executor() {
+                    @Override
+                    public void execute(Runnable task) {
+                        tasks.add(task);
+                    }
+                });
+        File journalFile = new File(dir, LogJournal.getJournalFileName(""));
+        assertFalse(journalFile.exists());
+
+        // Queued before the journal is opened.
+        for (int i = 0; i < 3; ++i) {
+            worker.addLineToQueue(LogPriority.INFO, "tag", "message " + i);
+        }
+        Thread appender = new Thread(tasks.get(0));
+        appender.setDaemon(true);
+        appender.start();
+
+        int recovered = 0;
+        for (int i = 0; i < 500 && recovered < 3; ++i) {
+            Thread.sleep(10);
+            // Another journal on the file would clear it before the appender has written the header.
+            if (journalWritePos(journalFile) > 0) {
+                recovered = new LogJournal(journalFile).recover().size();
+            }
+        }
+        assertEquals(3, recovered);
+    }
+
+    private AsyncLoggingWorker createWorker(LogTransport.Factory transportFactory) throws IOException {
+        return createWorker(folder.newFolder(), transportFactory);
+    }
+
+    private static AsyncLoggingWorker createWorker(File dir, LogTransport.Factory transportFactory) throws IOException {
+        return new AsyncLoggingWorker(new JvmPlatform(dir, "", Integer.MAX_VALUE), transportFactory,
+                false, false, "dev", false, false, false);
+    }
+
+    private static long journalWritePos(File journalFile) throws IOException {
+        if (journalFile.length() < 24) {
+            return 0;
+        }
+        RandomAccessFile input = new RandomAccessFile(journalFile, "r");
+        try {
+            input.seek(16);
+            return input.readLong();
+        } finally {
+            input.close();
+        }
+    }
+
+    private static int countOf(List<String> messages, String message) {
+        int count = 0;
+        for (String received : messages) {
+            if (received.contains(message)) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Queues the given number of logs, with room for the given total number of them.
+     */
+    private void fillQueue(int count, int room) {
+        worker.setMaxQueueBytes(room * (long) new LogItem(LogPriority.INFO, "tag", "x").getSize());
+        for (int i = 0; i < count; ++i) {
+            assertTrue(worker.tryAddLineToQueue(LogPriority.INFO, "tag", "x"));
+        }
+    }
+
+    private static List<String> lines(int count) {
+        return new ArrayList<>(Collections.nCopies(count, "x"));
+    }
+
+    private static char lastChar(String message) {
+        return message.charAt(message.length() - 1);
+    }
+}
@@ -0,0 +1,134 @@
+package com.logentries.logger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogJournalTest {
+
+    // Magic, version, read and write positions.
+    private static final int HEADER_SIZE = 24;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void uncommittedLogsAreRecovered() throws Exception {
+        File file = folder.newFile();
+        LogJournal journal = new LogJournal(file);
+        List<LogItem> written = append(journal, 3);
+        journal.commit(written.get(0));
+
+        assertEquals(Arrays.asList("message 1", "message 2"), messagesOf(new LogJournal(file).recover()));
+    }
+
+    @Test
+    public void journalingGoesOnAfterCorruptedRecord() throws Exception {
+        File file = folder.newFile();
+        List<LogItem> written = append(new LogJournal(file), 3);
+        writeLength(file, written.get(0).mJournalEnd, 7);
+
+        LogJournal journal = new LogJournal(file);
+        Queue<LogItem> recovered = journal.recover();
+        assertEquals(Arrays.asList("message 0"), messagesOf(recovered));
+        journal.commit(recovered.poll());
+        assertJournals(journal);
+
+        // The corrupted record is not hit again.
+        assertTrue(new LogJournal(file).recover().isEmpty());
+    }
+
+    @Test
+    public void journalingGoesOnAfterCorruptedFirstRecord() throws Exception {
+        File file = folder.newFile();
+        append(new LogJournal(file), 3);
+        writeLength(file, 0, 0x7fffffff);
+
+        LogJournal journal = new LogJournal(file);
+        assertTrue(journal.recover().isEmpty());
+        assertJournals(journal);
+        assertTrue(new LogJournal(file).recover().isEmpty());
+    }
+
+    @Test
+    public void deferredMessageIsRenderedOutsideLock() throws Exception {
+        File file = folder.newFile();
+        final LogJournal journal = new LogJournal(file);
+        final Thread other = new Thread() {
+            @Override
+            public void run() {
+                journal.append(new LogItem(LogPriority.INFO, "tag", "other"));
+            }
+        };
+        LogItem deferred = new LogItem(LogPriority.INFO, "tag", new DeferredMessage() {
+            @Override
+            public String render() {
+                // Another thread's log is not held up by the rendering.
+                other.start();
+                try {
+                    other.join(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return other.isAlive() ? "blocked" : "rendered";
+            }
+        });
+
+        assertTrue(journal.append(deferred));
+        assertEquals(Arrays.asList("other", "rendered"), messagesOf(new LogJournal(file).recover()));
+    }
+
+    /**
+     * Appends and commits more logs than the journal holds at once.
+     */
+    private static void assertJournals(LogJournal journal) {
+        char[] padding = new char[1000];
+        Arrays.fill(padding, 'x');
+        for (int i = 0; i < 5000; ++i) {
+            LogItem logItem = new LogItem(LogPriority.INFO, "tag", new String(padding));
+            assertTrue("Log " + i + " is not journaled", journal.append(logItem));
+            journal.commit(logItem);
+        }
+    }
+
+    private static List<LogItem> append(LogJournal journal, int count) {
+        List<LogItem> written = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            LogItem logItem = new LogItem(LogPriority.INFO, "tag", "message " + i);
+            assertTrue(journal.append(logItem));
+            written.add(logItem);
+        }
+        return written;
+    }
+
+    /**
+     * Overwrites the length of the record at the given position.
+     */
+    private static void writeLength(File file, long pos, int length) throws Exception {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.seek(HEADER_SIZE + pos);
+            output.writeInt(length);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static List<String> messagesOf(Queue<LogItem> logs) {
+        List<String> messages = new ArrayList<>();
+        for (LogItem logItem : logs) {
+            messages.add(logItem.getMessage());
+        }
+        return messages;
+    }
+}
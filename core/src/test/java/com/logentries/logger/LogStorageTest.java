@@ -0,0 +1,256 @@
+package com.logentries.logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LogStorageTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int SEGMENT_MAGIC = 0x4C455332;
+    private static final int NEW_TAG_FLAG = 0x8000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private final List<LogStorage> storages = new ArrayList<>();
+
+    @Before
+    public void createDir() throws IOException {
+        dir = folder.newFolder();
+    }
+
+    @After
+    public void closeStorages() {
+        for (LogStorage storage : storages) {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void logsAreReadBackInOrder() throws Exception {
+        LogStorage storage = open("");
+        List<LogItem> written = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            written.add(new LogItem(2 + i % 5, "com.example.Activity" + (i % 30), "message " + i, 1000 + i));
+        }
+        written.add(new LogItem(LogPriority.INFO, "", "empty tag \u20ac", 5000));
+        for (LogItem logItem : written) {
+            storage.putLogToStorage(logItem);
+        }
+
+        assertLogs(written, readAll(storage, 128));
+        assertFalse(storage.hasPendingLogs());
+    }
+
+    @Test
+    public void fullDictionaryStartsNewSegment() throws Exception {
+        LogStorage storage = open("");
+        // Distinct priority and tag pairs, 3 more than a dictionary holds; the records are small enough
+        // not to fill the segment.
+        List<LogItem> written = new ArrayList<>();
+        for (int i = 0; i < 32768 + 3; ++i) {
+            written.add(new LogItem(i & 7, Integer.toString(i >> 3, 36), "", i));
+        }
+        for (LogItem logItem : written) {
+            storage.putLogToStorage(logItem);
+        }
+
+        assertEquals(2, segmentFiles().length);
+        assertLogs(written, readAll(storage, 1000));
+    }
+
+    @Test
+    public void newUploaderResumesFromCursor() throws Exception {
+        LogStorage storage = open("other");
+        assertTrue(storage.isUploader());
+
+        List<LogItem> written = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            // The tags are defined before the cursor.
+            written.add(new LogItem(LogPriority.INFO, "tag" + (i % 10), "message " + i, i));
+        }
+        for (LogItem logItem : written) {
+            storage.putLogToStorage(logItem);
+        }
+
+        Queue<LogItem> read = storage.readLogs(50);
+        assertLogs(written.subList(0, 50), new ArrayList<>(read));
+        for (LogItem logItem : read) {
+            storage.commit(logItem);
+        }
+        storage.checkpoint();
+        storage.close();
+
+        // A new uploader knows nothing of the segment's dictionary.
+        LogStorage uploader = open("");
+        assertTrue(uploader.isUploader());
+        assertLogs(written.subList(50, 100), readAll(uploader, 30));
+    }
+
+    @Test
+    public void unknownTagIdDropsRestOfSegment() throws Exception {
+        ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(segment);
+        output.writeInt(SEGMENT_MAGIC);
+        output.writeInt(2);
+        writeRecord(output, true, tagRecord(1, NEW_TAG_FLAG, LogPriority.INFO, "tag", "first"));
+        writeRecord(output, true, tagRecord(2, 5, 0, null, "unknown tag"));
+        writeRecord(output, true, tagRecord(3, 0, 0, null, "after"));
+        File file = writeSegment(1, segment);
+
+        LogStorage storage = open("");
+        Queue<LogItem> read = storage.readLogs(100);
+        assertEquals(1, read.size());
+        assertEquals("first", read.peek().getMessage());
+        storage.commit(read.poll());
+
+        assertTrue(storage.readLogs(100).isEmpty());
+        assertFalse(file.exists());
+        assertFalse(storage.hasPendingLogs());
+    }
+
+    @Test
+    public void version1AndHeaderlessSegmentsAreRead() throws Exception {
+        List<LogItem> written = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) {
+            written.add(new LogItem(2 + i % 5, "tag" + (i % 3), "message " + i, i));
+        }
+
+        ByteArrayOutputStream headerless = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(headerless);
+        for (LogItem logItem : written.subList(0, 10)) {
+            writeRecord(output, false, legacyRecord(logItem));
+        }
+        writeSegment(1, headerless);
+
+        ByteArrayOutputStream version1 = new ByteArrayOutputStream();
+        output = new DataOutputStream(version1);
+        output.writeInt(SEGMENT_MAGIC);
+        output.writeInt(1);
+        for (LogItem logItem : written.subList(10, 20)) {
+            writeRecord(output, true, legacyRecord(logItem));
+        }
+        writeSegment(2, version1);
+
+        LogStorage storage = open("");
+        assertLogs(written, readAll(storage, 7));
+        assertEquals(0, segmentFiles().length);
+    }
+
+    private LogStorage open(String process) throws IOException {
+        LogStorage storage = new LogStorage(dir, process);
+        storages.add(storage);
+        return storage;
+    }
+
+    /**
+     * Reads and commits the logs until there are none left.
+     */
+    private static List<LogItem> readAll(LogStorage storage, int batchSize) {
+        List<LogItem> read = new ArrayList<>();
+        for (Queue<LogItem> logs = storage.readLogs(batchSize); !logs.isEmpty(); logs = storage.readLogs(batchSize)) {
+            for (LogItem logItem : logs) {
+                read.add(logItem);
+                storage.commit(logItem);
+            }
+            storage.checkpoint();
+        }
+        return read;
+    }
+
+    private static void assertLogs(List<LogItem> expected, List<LogItem> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            LogItem logItem = expected.get(i);
+            assertEquals(logItem.getMessage(), actual.get(i).getMessage());
+            assertEquals(logItem.mTag, actual.get(i).mTag);
+            assertEquals(logItem.mPriority, actual.get(i).mPriority);
+            assertEquals(logItem.mTimestamp, actual.get(i).mTimestamp);
+        }
+    }
+
+    private File[] segmentFiles() {
+        return dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File parent, String name) {
+                return name.endsWith(".seg");
+            }
+        });
+    }
+
+    /**
+     * Writes a segment of another process, which is not being appended to.
+     */
+    private File writeSegment(long seq, ByteArrayOutputStream content) throws IOException {
+        File file = new File(dir, "LogentriesLogStorage." + seq + ".other.seg");
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content.toByteArray());
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    private static void writeRecord(DataOutputStream output, boolean withCrc, byte[] record) throws IOException {
+        output.writeInt(record.length);
+        if (withCrc) {
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            output.writeInt((int) crc.getValue());
+        }
+        output.write(record);
+    }
+
+    /**
+     * Record of a version 2 segment; the tag entry is written if the tag is given.
+     */
+    private static byte[] tagRecord(long timestamp, int tagId, int priority, String tag, String message) {
+        byte[] tagBytes = tag == null ? new byte[0] : tag.getBytes(UTF8);
+        byte[] messageBytes = message.getBytes(UTF8);
+        ByteBuffer record = ByteBuffer.allocate(8 + 2 + (tag == null ? 0 : 8 + tagBytes.length) + messageBytes.length);
+        record.putLong(timestamp);
+        record.putShort((short) tagId);
+        if (tag != null) {
+            record.putInt(priority);
+            record.putInt(tagBytes.length);
+            record.put(tagBytes);
+        }
+        record.put(messageBytes);
+        return record.array();
+    }
+
+    private static byte[] legacyRecord(LogItem logItem) {
+        byte[] tag = logItem.mTag.getBytes(UTF8);
+        byte[] message = logItem.getMessage().getBytes(UTF8);
+        ByteBuffer record = ByteBuffer.allocate(8 + 4 + 4 + tag.length + message.length);
+        record.putLong(logItem.mTimestamp);
+        record.putInt(logItem.mPriority);
+        record.putInt(tag.length);
+        record.put(tag);
+        record.put(message);
+        return record.array();
+    }
+}
@@ -0,0 +1,131 @@
+package com.logentries.logger;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecentLogsTest {
+
+    @Test
+    public void keepsNewestLogsInOrderAfterWrapAround() {
+        RecentLogs recentLogs = new RecentLogs(4, 1024 * 1024);
+        long size = 0;
+        for (int i = 0; i < 10; ++i) {
+            LogItem logItem = new LogItem(LogPriority.INFO, "tag", "message " + i, i);
+            recentLogs.add(logItem);
+            if (i >= 6) {
+                size += logItem.getSize();
+            }
+        }
+
+        assertEquals(messages(6, 10), messagesOf(recentLogs.snapshot()));
+        assertEquals(6, recentLogs.snapshot().get(0).getTimestamp());
+        assertEquals(size, recentLogs.getBytes());
+        assertEquals(size, recentLogs.sumSlotBytes());
+    }
+
+    @Test
+    public void dropsOldestLogsOverMaxBytes() {
+        int size = new LogItem(LogPriority.INFO, "tag", "message 0").getSize();
+        RecentLogs recentLogs = new RecentLogs(8, 3 * size);
+        for (int i = 0; i < 20; ++i) {
+            recentLogs.add(new LogItem(LogPriority.INFO, "tag", "message " + (i % 10)));
+        }
+
+        assertEquals(messages(7, 10), messagesOf(recentLogs.snapshot()));
+        assertEquals(3 * size, recentLogs.getBytes());
+        assertEquals(3 * size, recentLogs.sumSlotBytes());
+    }
+
+    @Test
+    public void keepsNewestLogOverMaxBytes() {
+        RecentLogs recentLogs = new RecentLogs(8, 1);
+        recentLogs.add(new LogItem(LogPriority.INFO, "tag", "message 0"));
+        recentLogs.add(new LogItem(LogPriority.INFO, "tag", "message 1"));
+
+        assertEquals(messages(1, 2), messagesOf(recentLogs.snapshot()));
+        assertEquals(recentLogs.sumSlotBytes(), recentLogs.getBytes());
+    }
+
+    @Test
+    public void bytesMatchLogsInRingUnderContention() throws InterruptedException {
+        final RecentLogs recentLogs = new RecentLogs(64, 512);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicLong minBytes = new AtomicLong();
+
+        Thread sampler = new Thread() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    long bytes = recentLogs.getBytes();
+                    if (bytes < minBytes.get()) {
+                        minBytes.set(bytes);
+                    }
+                }
+            }
+        };
+        sampler.start();
+
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; ++t) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(thread);
+                    StringBuilder padding = new StringBuilder();
+                    for (int i = 0; i < 50000; ++i) {
+                        padding.setLength(random.nextInt(64));
+                        recentLogs.add(new LogItem(LogPriority.INFO, "tag", thread + " " + i + " " + padding));
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        done.set(true);
+        sampler.join();
+
+        assertEquals(0, minBytes.get());
+        assertEquals(recentLogs.sumSlotBytes(), recentLogs.getBytes());
+
+        // Each thread's logs keep their order.
+        List<RecentLogs.Entry> snapshot = recentLogs.snapshot();
+        assertFalse(snapshot.isEmpty());
+        assertTrue(snapshot.size() <= 64);
+        int[] last = new int[threads.length];
+        for (RecentLogs.Entry entry : snapshot) {
+            String[] parts = entry.getMessage().split(" ");
+            int thread = Integer.parseInt(parts[0]);
+            int i = Integer.parseInt(parts[1]);
+            assertTrue(i >= last[thread]);
+            last[thread] = i;
+        }
+    }
+
+    private static List<String> messages(int from, int to) {
+        List<String> messages = new ArrayList<>();
+        for (int i = from; i < to; ++i) {
+            messages.add("message " + i);
+        }
+        return messages;
+    }
+
+    private static List<String> messagesOf(List<RecentLogs.Entry> entries) {
+        List<String> messages = new ArrayList<>();
+        for (RecentLogs.Entry entry : entries) {
+            messages.add(entry.getMessage());
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,174 @@
+package com.logentries.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Sends through {@link DatagramTransport} to a local UDP socket and checks what arrives.
+ */
+public class DatagramTransportTest {
+
+    private static final String TOKEN = "2bfbea1e-10c3-4419-bdad-7e6435882e1f";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAX_UDP_PAYLOAD = 65507;
+
+    private DatagramSocket server;
+    private DatagramTransport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        server.setSoTimeout(5000);
+        server.setReceiveBufferSize(1024 * 1024);
+    }
+
+    @After
+    public void tearDown() {
+        if (transport != null) {
+            transport.close();
+        }
+        server.close();
+    }
+
+    @Test
+    public void packsTokenPrefixedLinesIntoOneDatagram() throws IOException {
+        connect(DatagramTransport.DEFAULT_MAX_DATAGRAM_SIZE);
+
+        transport.write(Arrays.asList("first line", "second line\n", "third line"));
+        transport.flush();
+
+        assertEquals(TOKEN + " first line\n" + TOKEN + " second line\n" + TOKEN + " third line\n", receive());
+        assertNothingReceived();
+    }
+
+    @Test
+    public void startsNewDatagramWhenLineDoesNotFit() throws IOException {
+        int maxDatagramSize = 200;
+        connect(maxDatagramSize);
+
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) {
+            lines.add("line number " + i);
+        }
+        transport.write(lines);
+        transport.flush();
+
+        List<String> received = new ArrayList<>();
+        int datagrams = 0;
+        while (received.size() < lines.size()) {
+            String datagram = receive();
+            ++datagrams;
+            assertTrue("Datagram of " + datagram.length() + " bytes", datagram.length() <= maxDatagramSize);
+            assertTrue("Datagram split a line: " + datagram, datagram.endsWith("\n"));
+            for (String line : datagram.split("\n")) {
+                received.add(line);
+            }
+        }
+
+        List<String> expected = new ArrayList<>();
+        for (String line : lines) {
+            expected.add(TOKEN + " " + line);
+        }
+        assertEquals(expected, received);
+        assertTrue("Lines were not packed: " + datagrams + " datagrams", datagrams < lines.size());
+        assertNothingReceived();
+    }
+
+    @Test
+    public void sendsLongLineAloneInFull() throws IOException {
+        connect(200);
+
+        String longLine = repeat('x', 5000);
+        transport.write(Arrays.asList("before", longLine, "after"));
+        transport.flush();
+
+        assertEquals(TOKEN + " before\n", receive());
+        assertEquals(TOKEN + " " + longLine + "\n", receive());
+        assertEquals(TOKEN + " after\n", receive());
+        assertNothingReceived();
+    }
+
+    @Test
+    public void truncatesLineLongerThanUdpPayload() throws IOException {
+        connect(DatagramTransport.DEFAULT_MAX_DATAGRAM_SIZE);
+
+        transport.write(Collections.singletonList(repeat('y', 100000)));
+        transport.flush();
+
+        String datagram = receive();
+        assertEquals(MAX_UDP_PAYLOAD, datagram.length());
+        assertEquals(TOKEN + " " + repeat('y', MAX_UDP_PAYLOAD - TOKEN.length() - 2) + "\n", datagram);
+    }
+
+    @Test
+    public void truncatesOnCharacterBoundary() throws IOException {
+        connect(DatagramTransport.DEFAULT_MAX_DATAGRAM_SIZE);
+
+        // Three bytes per character in UTF-8.
+        transport.write(Collections.singletonList(repeat('\u20ac', 40000)));
+        transport.flush();
+
+        String datagram = receive();
+        assertTrue(datagram.endsWith("\u20ac\n"));
+        assertTrue(datagram.getBytes(UTF8).length <= MAX_UDP_PAYLOAD);
+    }
+
+    @Test
+    public void rejectsDatagramSizeWithoutRoomForLine() throws IOException {
+        // The token, a space and the line end.
+        try {
+            new DatagramTransport("127.0.0.1", server.getLocalPort(), TOKEN, TOKEN.length() + 2);
+            fail("A datagram without room for a line is accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        connect(TOKEN.length() + 3);
+        transport.write(Collections.singletonList("x"));
+        transport.flush();
+        assertEquals(TOKEN + " x\n", receive());
+    }
+
+    private void connect(int maxDatagramSize) throws IOException {
+        transport = new DatagramTransport("127.0.0.1", server.getLocalPort(), TOKEN, maxDatagramSize);
+        transport.connect();
+        assertTrue(transport.isHealthy());
+    }
+
+    private String receive() throws IOException {
+        DatagramPacket packet = new DatagramPacket(new byte[MAX_UDP_PAYLOAD + 1], MAX_UDP_PAYLOAD + 1);
+        server.receive(packet);
+        return new String(packet.getData(), 0, packet.getLength(), UTF8);
+    }
+
+    private void assertNothingReceived() throws IOException {
+        server.setSoTimeout(200);
+        try {
+            fail("Unexpected datagram: " + receive());
+        } catch (SocketTimeoutException expected) {
+            // Nothing else has been sent.
+        }
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
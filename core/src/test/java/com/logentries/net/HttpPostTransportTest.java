@@ -0,0 +1,200 @@
+package com.logentries.net;
+
+import com.logentries.logger.AsyncLoggingWorker;
+import com.logentries.misc.JvmPlatform;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpPostTransportTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private String url;
+
+    // Status codes the server answers with, in turn; 200 once they are used up.
+    private final Queue<Integer> responses = new ConcurrentLinkedQueue<>();
+    private volatile String retryAfter = "0";
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final List<String> accepted = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requestCount.incrementAndGet();
+                String body = readBody(exchange.getRequestBody());
+                Integer status = responses.poll();
+                if (status == null || status == 200) {
+                    accepted.add(body);
+                    exchange.sendResponseHeaders(200, -1);
+                } else {
+                    exchange.getResponseHeaders().add("Retry-After", retryAfter);
+                    exchange.sendResponseHeaders(status, -1);
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void throttledRequestThrowsRightAway() throws Exception {
+        responses.addAll(Arrays.asList(200, 200, 429));
+        retryAfter = "2";
+        HttpPostTransport transport = connect();
+
+        long start = System.currentTimeMillis();
+        try {
+            transport.write(Arrays.asList("a", "b", "c", "d"));
+            fail("Expected ThrottledException");
+        } catch (ThrottledException ex) {
+            assertEquals(2, ex.getSentCount());
+            assertTrue(ex.getRetryAfter() > 1000 && ex.getRetryAfter() <= 2000);
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(Arrays.asList("a", "b"), accepted);
+        assertEquals(HttpPostTransport.INITIAL_THROTTLED_RATE, transport.getRate(), 0);
+    }
+
+    @Test
+    public void batchBeforeRetryAfterIsRejectedWithoutRequest() throws Exception {
+        responses.add(429);
+        retryAfter = "2";
+        HttpPostTransport transport = connect();
+        writeThrottled(transport, "a");
+
+        try {
+            transport.write(Arrays.asList("b", "c"));
+            fail("Expected ThrottledException");
+        } catch (ThrottledException ex) {
+            assertEquals(0, ex.getSentCount());
+            assertTrue(ex.getRetryAfter() > 0);
+        }
+        assertEquals(1, requestCount.get());
+    }
+
+    @Test
+    public void rateIsHalvedOnEachThrottling() throws Exception {
+        responses.addAll(Arrays.asList(429, 429));
+        HttpPostTransport transport = connect();
+
+        Thread.sleep(writeThrottled(transport, "a").getRetryAfter());
+        assertEquals(10, transport.getRate(), 0);
+        writeThrottled(transport, "b");
+        assertEquals(5, transport.getRate(), 0);
+    }
+
+    @Test
+    public void pacedBatchIsSentCompletely() throws Exception {
+        responses.add(429);
+        HttpPostTransport transport = connect();
+        Thread.sleep(writeThrottled(transport, "a").getRetryAfter());
+
+        try {
+            transport.write(Arrays.asList("b", "c", "d"));
+            fail("Expected ThrottledException");
+        } catch (ThrottledException ex) {
+            // All accepted, but the transport asks to wait before the next batch.
+            assertEquals(3, ex.getSentCount());
+            assertTrue(ex.getRetryAfter() > 0);
+        }
+        assertEquals(Arrays.asList("b", "c", "d"), accepted);
+    }
+
+    @Test
+    public void workerRequeuesUnsentTail() throws Exception {
+        responses.addAll(Arrays.asList(200, 200, 429));
+        retryAfter = "1";
+        AsyncLoggingWorker worker = new AsyncLoggingWorker(
+                new JvmPlatform(folder.newFolder(), "", Integer.MAX_VALUE), new LogTransport.Factory() {
+            @Override
+            public LogTransport createTransport() {
+                return new HttpPostTransport(url);
+            }
+        }, false, false, "dev", false, false, false);
+        try {
+            List<String> lines = new ArrayList<>();
+            for (int i = 0; i < 5; ++i) {
+                lines.add("line-" + i);
+            }
+            worker.addLinesToQueue(3, "tag", lines);
+
+            for (int i = 0; i < 500 && accepted.size() < lines.size(); ++i) {
+                Thread.sleep(20);
+            }
+            Thread.sleep(200);
+
+            // The lines rejected by the server are sent again from the local storage - each of
+            // them once.
+            assertEquals(lines.size(), accepted.size());
+            for (int i = 0; i < lines.size(); ++i) {
+                assertTrue(accepted.get(i), accepted.get(i).contains(lines.get(i)));
+            }
+            assertEquals(lines.size() + 1, requestCount.get());
+        } finally {
+            worker.close(2000);
+        }
+    }
+
+    private HttpPostTransport connect() throws IOException {
+        HttpPostTransport transport = new HttpPostTransport(url);
+        transport.connect();
+        return transport;
+    }
+
+    private static ThrottledException writeThrottled(HttpPostTransport transport, String line) throws IOException {
+        try {
+            transport.write(Collections.singletonList(line));
+        } catch (ThrottledException ex) {
+            return ex;
+        }
+        throw new AssertionError("Expected ThrottledException");
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), UTF8);
+    }
+}
@@ -0,0 +1,159 @@
+package com.logentries.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Connects {@link TokenTcpTransport} with a standby connection to a local server, and counts the
+ * connections it opens.
+ */
+public class TokenTcpTransportTest {
+
+    private static final String TOKEN = "2bfbea1e-10c3-4419-bdad-7e6435882e1f";
+    private static final long TIMEOUT = 5000; // milliseconds.
+
+    private ServerSocket server;
+    private final List<Socket> accepted = new ArrayList<>();
+    private Thread acceptor;
+
+    private TokenTcpTransport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        acceptor = new Thread("Test server") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket s = server.accept();
+                        synchronized (accepted) {
+                            accepted.add(s);
+                            accepted.notifyAll();
+                        }
+                    }
+                } catch (IOException ex) {
+                    // The server has been closed.
+                }
+            }
+        };
+        acceptor.start();
+
+        transport = new TokenTcpTransport("127.0.0.1", server.getLocalPort(), TOKEN, null, true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        transport.close();
+        server.close();
+        acceptor.join();
+        synchronized (accepted) {
+            for (Socket s : accepted) {
+                s.close();
+            }
+        }
+    }
+
+    @Test
+    public void steadyTrafficOpensOneStandby() throws Exception {
+        transport.connect();
+        for (int i = 0; i < 50; ++i) {
+            transport.write(Collections.singletonList("message " + i));
+            transport.flush();
+        }
+
+        // The active connection and the standby one, opened after the first connect.
+        awaitAccepted(2);
+        Thread.sleep(200);
+        assertEquals(2, acceptedCount());
+    }
+
+    @Test
+    public void connectWarmsStandbyAndReconnectTakesItOver() throws Exception {
+        transport.connect();
+        awaitAccepted(2);
+        // Accepted by the server, and now let the warm-up thread hand it over.
+        Thread.sleep(200);
+
+        // Reconnecting takes the standby over, and warms another one.
+        transport.connect();
+        awaitAccepted(3);
+        Thread.sleep(200);
+        assertEquals(3, acceptedCount());
+
+        transport.write(Collections.singletonList("over the standby"));
+        transport.flush();
+        assertEquals(TOKEN + " over the standby\n", readLine(acceptedSocket(1)));
+    }
+
+    @Test
+    public void closeClosesStandby() throws Exception {
+        transport.connect();
+        awaitAccepted(2);
+
+        transport.close();
+        for (int i = 0; i < 2; ++i) {
+            assertClosedByPeer(acceptedSocket(i));
+        }
+    }
+
+    private void awaitAccepted(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        synchronized (accepted) {
+            while (accepted.size() < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                assertTrue("Only " + accepted.size() + " connections accepted", remaining > 0);
+                accepted.wait(remaining);
+            }
+        }
+    }
+
+    private int acceptedCount() {
+        synchronized (accepted) {
+            return accepted.size();
+        }
+    }
+
+    private Socket acceptedSocket(int index) {
+        synchronized (accepted) {
+            return accepted.get(index);
+        }
+    }
+
+    private static String readLine(Socket s) throws IOException {
+        s.setSoTimeout((int) TIMEOUT);
+        InputStream input = s.getInputStream();
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = input.read()) >= 0) {
+            line.append((char) c);
+            if (c == '\n') {
+                break;
+            }
+        }
+        return line.toString();
+    }
+
+    private static void assertClosedByPeer(Socket s) throws IOException {
+        s.setSoTimeout((int) TIMEOUT);
+        try {
+            assertEquals(-1, s.getInputStream().read());
+        } catch (SocketException ex) {
+            // Reset by the peer - closed as well.
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.logentries.bridge;
+
+import android.util.Log;
+
+import com.logentries.logger.AndroidLogger;
+import com.logentries.logger.DeferredMessage;
+
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * java.util.logging handler, which sends the records through the {@link AndroidLogger} instance.
+ * <p>
+ * Records are dropped until the instance has been created. The messages are formatted on the sender's
+ * thread - with the handler's formatter, if one is set, or just the message with its parameters otherwise,
+ * followed by the stack trace of the thrown exception as with {@link AndroidLogger#log(int, String, String, Throwable)}.
+ */
+public class LogentriesHandler extends Handler {
+
+    private static final Formatter MESSAGE_FORMATTER = new Formatter() {
+        @Override
+        public String format(LogRecord record) {
+            return formatMessage(record);
+        }
+    };
+
+    /**
+     * Adds the handler to the root logger. The level of the root logger is set to the given one, so
+     * the loggers skip the records below it without even creating them.
+     */
+    public static LogentriesHandler install(Level level) {
+        LogentriesHandler handler = new LogentriesHandler();
+        Logger rootLogger = LogManager.getLogManager().getLogger("");
+        rootLogger.setLevel(level);
+        rootLogger.addHandler(handler);
+        return handler;
+    }
+
+    @Override
+    public boolean isLoggable(LogRecord record) {
+        AndroidLogger logger = AndroidLogger.peekInstance();
+        return logger != null && logger.isLoggable(toPriority(record.getLevel())) && super.isLoggable(record);
+    }
+
+    @Override
+    public void publish(final LogRecord record) {
+        if (!isLoggable(record)) {
+            return;
+        }
+
+        // The handler's own formatter renders the stack trace itself.
+        final Formatter formatter = getFormatter() != null ? getFormatter() : MESSAGE_FORMATTER;
+        AndroidLogger.peekInstance().tryLogDeferred(toPriority(record.getLevel()),
+                LoggerTags.getTag(record.getLoggerName()), new DeferredMessage() {
+                    @Override
+                    public String render() {
+                        return formatter.format(record);
+                    }
+                }, formatter == MESSAGE_FORMATTER ? record.getThrown() : null);
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to do - the logs are sent by the logger's sender.
+    }
+
+    @Override
+    public void close() {
+        // Nothing to do - the logger is not owned by the handler.
+    }
+
+    private static int toPriority(Level level) {
+        int value = level.intValue();
+        if (value >= Level.SEVERE.intValue()) {
+            return Log.ERROR;
+        } else if (value >= Level.WARNING.intValue()) {
+            return Log.WARN;
+        } else if (value >= Level.INFO.intValue()) {
+            return Log.INFO;
+        } else if (value >= Level.FINE.intValue()) {
+            return Log.DEBUG;
+        }
+        return Log.VERBOSE;
+    }
+}
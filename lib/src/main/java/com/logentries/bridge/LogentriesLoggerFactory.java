@@ -0,0 +1,28 @@
+package com.logentries.bridge;
+
+import org.slf4j.ILoggerFactory;
+import org.slf4j.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Creates (once per name) the {@link LogentriesSlf4jLogger} loggers.
+ */
+public class LogentriesLoggerFactory implements ILoggerFactory {
+
+    private final ConcurrentMap<String, Logger> loggers = new ConcurrentHashMap<>();
+
+    @Override
+    public Logger getLogger(String name) {
+        Logger logger = loggers.get(name);
+        if (logger == null) {
+            Logger newLogger = new LogentriesSlf4jLogger(name);
+            logger = loggers.putIfAbsent(name, newLogger);
+            if (logger == null) {
+                logger = newLogger;
+            }
+        }
+        return logger;
+    }
+}
@@ -0,0 +1,94 @@
+package com.logentries.bridge;
+
+import android.util.Log;
+
+import com.logentries.logger.AndroidLogger;
+import com.logentries.logger.DeferredMessage;
+
+import org.slf4j.Marker;
+import org.slf4j.event.Level;
+import org.slf4j.helpers.LegacyAbstractLogger;
+import org.slf4j.helpers.MessageFormatter;
+
+/**
+ * SLF4J logger, which sends the messages through the {@link AndroidLogger} instance.
+ * <p>
+ * The isXxxEnabled() checks follow the min. priority of the instance, and are false until the
+ * instance has been created. The parameterized messages and the stack traces are formatted on the
+ * sender's thread. The tag is looked up in {@link LoggerTags} for each message, so the tags set after
+ * the logger has been created (SLF4J keeps its loggers) apply to it as well.
+ */
+public class LogentriesSlf4jLogger extends LegacyAbstractLogger {
+
+    private static final long serialVersionUID = 1L;
+
+    LogentriesSlf4jLogger(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public boolean isTraceEnabled() {
+        return isLoggable(Log.VERBOSE);
+    }
+
+    @Override
+    public boolean isDebugEnabled() {
+        return isLoggable(Log.DEBUG);
+    }
+
+    @Override
+    public boolean isInfoEnabled() {
+        return isLoggable(Log.INFO);
+    }
+
+    @Override
+    public boolean isWarnEnabled() {
+        return isLoggable(Log.WARN);
+    }
+
+    @Override
+    public boolean isErrorEnabled() {
+        return isLoggable(Log.ERROR);
+    }
+
+    @Override
+    protected String getFullyQualifiedCallerName() {
+        return null;
+    }
+
+    @Override
+    protected void handleNormalizedLoggingCall(Level level, Marker marker, final String messagePattern,
+                                               final Object[] arguments, final Throwable throwable) {
+        AndroidLogger logger = AndroidLogger.peekInstance();
+        if (logger == null) {
+            return;
+        }
+
+        logger.tryLogDeferred(toPriority(level), LoggerTags.getTag(name), new DeferredMessage() {
+            @Override
+            public String render() {
+                return MessageFormatter.basicArrayFormat(messagePattern, arguments);
+            }
+        }, throwable);
+    }
+
+    private static boolean isLoggable(int priority) {
+        AndroidLogger logger = AndroidLogger.peekInstance();
+        return logger != null && logger.isLoggable(priority);
+    }
+
+    private static int toPriority(Level level) {
+        switch (level) {
+            case ERROR:
+                return Log.ERROR;
+            case WARN:
+                return Log.WARN;
+            case INFO:
+                return Log.INFO;
+            case DEBUG:
+                return Log.DEBUG;
+            default:
+                return Log.VERBOSE;
+        }
+    }
+}
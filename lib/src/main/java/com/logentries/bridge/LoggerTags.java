@@ -0,0 +1,81 @@
+package com.logentries.bridge;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps logger names (usually class names) of SLF4J and java.util.logging loggers to the tags of
+ * the log messages.
+ * <p>
+ * A tag can be set for a logger name or for a whole package - the longest matching name wins.
+ * Loggers without a tag set get their simple name, e.g. "NetworkClient" for
+ * "com.example.net.NetworkClient". Lookups are cached, so mapping a name costs a single hash lookup;
+ * setting or removing a tag clears the cache.
+ */
+public class LoggerTags {
+
+    /**
+     * Max. length of a tag - the limit of android.util.Log, kept so the same tags can be used there.
+     */
+    public static final int MAX_TAG_LENGTH = 23;
+
+    private static final Map<String, String> tags = new ConcurrentHashMap<>();
+    private static final Map<String, String> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Sets the tag for the logger with the given name and for the loggers below it, e.g. for
+     * "com.example.net" it applies to "com.example.net.NetworkClient" as well.
+     */
+    public static void setTag(String loggerName, String tag) {
+        if (loggerName == null || tag == null) {
+            throw new IllegalArgumentException("loggerName and tag cannot be null");
+        }
+
+        synchronized (tags) {
+            tags.put(loggerName, tag);
+            cache.clear();
+        }
+    }
+
+    public static void removeTag(String loggerName) {
+        synchronized (tags) {
+            tags.remove(loggerName);
+            cache.clear();
+        }
+    }
+
+    public static String getTag(String loggerName) {
+        if (loggerName == null) {
+            loggerName = "";
+        }
+
+        String tag = cache.get(loggerName);
+        if (tag == null) {
+            // Resolved under the lock, so a tag resolved before a change is not cached after it.
+            synchronized (tags) {
+                tag = resolveTag(loggerName);
+                cache.put(loggerName, tag);
+            }
+        }
+        return tag;
+    }
+
+    private static String resolveTag(String loggerName) {
+        String name = loggerName;
+        while (true) {
+            String tag = tags.get(name);
+            if (tag != null) {
+                return tag;
+            }
+
+            int dot = name.lastIndexOf('.');
+            if (dot < 0) {
+                break;
+            }
+            name = name.substring(0, dot);
+        }
+
+        String simpleName = loggerName.substring(loggerName.lastIndexOf('.') + 1);
+        return simpleName.length() > MAX_TAG_LENGTH ? simpleName.substring(0, MAX_TAG_LENGTH) : simpleName;
+    }
+}
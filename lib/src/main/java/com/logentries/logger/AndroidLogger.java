@@ -1,36 +1,115 @@
 package com.logentries.logger;
 
 import android.content.Context;
-import com.logentries.misc.Utils;
+import android.util.Log;
+
+import com.logentries.misc.AndroidPlatform;
+import com.logentries.misc.Platform;
+import com.logentries.net.InMemoryTransport;
+import com.logentries.net.LogTransport;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.Executor;
 
 public class AndroidLogger {
 
-    private static AndroidLogger instance;
+    private static final String TAG = "LogentriesAndroidLogger";
+
+    private static volatile AndroidLogger instance;
 
     private final AsyncLoggingWorker loggingWorker;
 
-    private AndroidLogger(Context context, boolean useHttpPost, boolean useSsl, boolean printTraceId, boolean printDeviceId, String deviceId, boolean printPriority, boolean isUsingDataHub, String dataHubAddr, int dataHubPort,
-                          String token, boolean logHostName) throws IOException {
-        loggingWorker = new AsyncLoggingWorker(context, useSsl, useHttpPost, printTraceId, printDeviceId, deviceId, printPriority, isUsingDataHub, token, dataHubAddr, dataHubPort, logHostName);
+    /**
+     * Messages with a lower priority are not logged.
+     */
+    private volatile int minPriority = Log.VERBOSE;
+
+    private AndroidLogger(AsyncLoggingWorker loggingWorker) {
+        this.loggingWorker = loggingWorker;
     }
 
-    public static synchronized AndroidLogger createInstance(Context context, boolean useHttpPost, boolean useSsl, boolean printTraceId, boolean printDeviceId, String deviceId, boolean printPriority, boolean isUsingDataHub,
-                                                            String dataHubAddr, int dataHubPort, String token, boolean logHostName)
-            throws IOException {
+    private static synchronized void closeInstance() {
         if (instance != null) {
             instance.loggingWorker.close();
         }
+    }
 
-        instance = new AndroidLogger(context, useHttpPost, useSsl, printTraceId, printDeviceId, deviceId, printPriority, isUsingDataHub, dataHubAddr, dataHubPort, token, logHostName);
+    /**
+     * Creates the logger instance.
+     *
+     * @param useDurableQueue if set to true, queued logs are also kept in a memory-mapped file, so the
+     *                        ones not yet sent survive the process being killed and are sent on the next start.
+     *                        The file is opened by the sender, logs are only queued until then.
+     */
+    public static synchronized AndroidLogger createInstance(Context context, boolean useHttpPost, boolean useSsl, boolean printTraceId, boolean printDeviceId, String deviceId, boolean printPriority, boolean isUsingDataHub,
+                                                            String dataHubAddr, int dataHubPort, String token, boolean logHostName, boolean useDurableQueue)
+            throws IOException {
+        closeInstance();
+
+        instance = new AndroidLogger(new AsyncLoggingWorker(new AndroidPlatform(context), useSsl, useHttpPost, printTraceId, printDeviceId, deviceId, printPriority, isUsingDataHub, token, dataHubAddr, dataHubPort, logHostName, useDurableQueue));
         return instance;
     }
 
+    /**
+     * Creates the logger instance, which sends logs over the transports created by the given factory
+     * instead of the Logentries endpoints - e.g. {@link InMemoryTransport} to measure the throughput
+     * of the logger without network costs.
+     */
+    public static synchronized AndroidLogger createInstance(Context context, LogTransport.Factory transportFactory, boolean printTraceId, boolean printDeviceId, String deviceId, boolean printPriority,
+                                                            boolean logHostName, boolean useDurableQueue)
+            throws IOException {
+        return createInstance(context, transportFactory, printTraceId, printDeviceId, deviceId, printPriority, logHostName, useDurableQueue, 1);
+    }
+
+    /**
+     * Creates the logger instance, which sends logs over several parallel connections - for the
+     * throughput one connection cannot sustain (e.g. to the DataHub).
+     *
+     * @param senderCount number of connections, 1 to {@link AsyncLoggingWorker#MAX_SENDER_COUNT}. Logs
+     *                    are assigned to the connections by their tag, so the logs of one tag keep their
+     *                    order; the order between different tags is not preserved.
+     */
+    public static synchronized AndroidLogger createInstance(Context context, LogTransport.Factory transportFactory, boolean printTraceId, boolean printDeviceId, String deviceId, boolean printPriority,
+                                                            boolean logHostName, boolean useDurableQueue, int senderCount)
+            throws IOException {
+        return createInstance(context, transportFactory, printTraceId, printDeviceId, deviceId, printPriority, logHostName, useDurableQueue, senderCount, null);
+    }
+
+    /**
+     * Creates the logger instance, which runs its senders on the given executor (e.g. one shared with
+     * the application) instead of starting a thread for each of them. Each sender takes a thread of
+     * the executor for as long as the logger runs.
+     */
+    public static synchronized AndroidLogger createInstance(Context context, LogTransport.Factory transportFactory, boolean printTraceId, boolean printDeviceId, String deviceId, boolean printPriority,
+                                                            boolean logHostName, boolean useDurableQueue, int senderCount, Executor executor)
+            throws IOException {
+        return createInstance(new AndroidPlatform(context), transportFactory, printTraceId, printDeviceId, deviceId, printPriority, logHostName, useDurableQueue, senderCount, executor);
+    }
+
+    /**
+     * Creates the logger instance on the given platform - for the tests, which run on a plain JVM.
+     */
+    static synchronized AndroidLogger createInstance(Platform platform, LogTransport.Factory transportFactory, boolean printTraceId, boolean printDeviceId, String deviceId, boolean printPriority,
+                                                     boolean logHostName, boolean useDurableQueue, int senderCount, Executor executor)
+            throws IOException {
+        closeInstance();
+
+        instance = new AndroidLogger(new AsyncLoggingWorker(platform, transportFactory, printTraceId, printDeviceId, deviceId, printPriority, logHostName, useDurableQueue, senderCount, executor));
+        return instance;
+    }
+
+    public static synchronized AndroidLogger createInstance(Context context, boolean useHttpPost, boolean useSsl, boolean printTraceId, boolean printDeviceId, String deviceId, boolean printPriority, boolean isUsingDataHub,
+                                                            String dataHubAddr, int dataHubPort, String token, boolean logHostName)
+            throws IOException {
+        return createInstance(context, useHttpPost, useSsl, printTraceId, printDeviceId, deviceId, printPriority, isUsingDataHub, dataHubAddr, dataHubPort, token, logHostName, false);
+    }
+
     public static synchronized AndroidLogger createInstance(Context context, boolean useHttpPost, boolean useSsl, boolean printTraceId, boolean printDeviceId, boolean printPriority, boolean isUsingDataHub,
                                                             String dataHubAddr, int dataHubPort, String token, boolean logHostName)
             throws IOException {
-        return createInstance(context, useHttpPost, useSsl, printTraceId, printDeviceId, Utils.getDeviceId(context), printPriority, isUsingDataHub, dataHubAddr, dataHubPort, token, logHostName);
+        // The device id is read (or generated) by the worker thread - passing null defers it there.
+        return createInstance(context, useHttpPost, useSsl, printTraceId, printDeviceId, null, printPriority, isUsingDataHub, dataHubAddr, dataHubPort, token, logHostName);
     }
 
     public static synchronized AndroidLogger getInstance() {
@@ -41,6 +120,14 @@ public class AndroidLogger {
         }
     }
 
+    /**
+     * Returns the logger instance, or null if it has not been created yet - unlike {@link #getInstance()}
+     * it does not lock, so it suits the logging bridges, which look the instance up on each call.
+     */
+    public static AndroidLogger peekInstance() {
+        return instance;
+    }
+
     /**
      * Set whether you wish to send your log message without additional meta data to Logentries.
      *
@@ -59,34 +146,301 @@ public class AndroidLogger {
         return loggingWorker.getSendRawLogMessage();
     }
 
+    /**
+     * Set the max. time the sender waits for more log messages to send them together. The actual
+     * wait adapts to the rate of logging - rare messages are sent right away.
+     *
+     * @param maxLinger time in milliseconds, 100 by default; zero disables batching by time.
+     */
+    public void setMaxLinger(long maxLinger) {
+        loggingWorker.setMaxLinger(maxLinger);
+    }
+
+    /**
+     * Set the max. number of log messages sent together.
+     *
+     * @param maxBatchCount number of messages, 100 by default.
+     */
+    public void setMaxBatchCount(int maxBatchCount) {
+        loggingWorker.setMaxBatchCount(maxBatchCount);
+    }
+
+    /**
+     * Set the max. size of log messages sent together; a batch is sent once it gets bigger.
+     *
+     * @param maxBatchBytes size in bytes, 64 KBytes by default.
+     */
+    public void setMaxBatchBytes(int maxBatchBytes) {
+        loggingWorker.setMaxBatchBytes(maxBatchBytes);
+    }
+
+    /**
+     * Set the share of the batches sent from the local storage while there are live logs to send as well,
+     * so fresh logs don't wait for the whole backlog after a long offline period.
+     *
+     * @param backlogShare between 0 (the backlog is sent only when there are no live logs) and 1
+     *                     (the whole backlog is sent first), 0.5 by default.
+     */
+    public void setBacklogShare(double backlogShare) {
+        loggingWorker.setBacklogShare(backlogShare);
+    }
+
+    /**
+     * Limit the rate the logs from the local storage are sent at, to leave the bandwidth for the live logs.
+     *
+     * @param maxBacklogRate logs per second, 0 (unlimited) by default.
+     */
+    public void setMaxBacklogRate(int maxBacklogRate) {
+        loggingWorker.setMaxBacklogRate(maxBacklogRate);
+    }
+
+    /**
+     * Set whether the logs from the local storage are sent starting with the newest ones - segment by segment,
+     * so the order is only roughly reversed. False by default.
+     */
+    public void setReplayNewestFirst(boolean replayNewestFirst) {
+        loggingWorker.setReplayNewestFirst(replayNewestFirst);
+    }
+
+    public boolean getReplayNewestFirst() {
+        return loggingWorker.getReplayNewestFirst();
+    }
+
+    /**
+     * Set the min. priority of logged messages (e.g. {@link Log#INFO}); messages with a lower priority
+     * are skipped. Messages logged without a priority are always logged.
+     *
+     * @param minPriority {@link Log#VERBOSE} by default.
+     */
+    public void setMinPriority(int minPriority) {
+        this.minPriority = minPriority;
+    }
+
+    public int getMinPriority() {
+        return minPriority;
+    }
+
+    /**
+     * Returns whether messages with the given priority are logged - the cheap check to do before
+     * building an expensive message.
+     */
+    public boolean isLoggable(int priority) {
+        return priority < 0 || priority >= minPriority;
+    }
+
     public void log(String message) {
         log(-1, null, message);
     }
 
+    /**
+     * Set what happens to a new log message when the queue is full; {@link OverflowPolicy#DROP_OLDEST}
+     * by default. If the message is rejected, {@link #log(int, String, String)} throws RuntimeException,
+     * while {@link #tryLog(int, String, String)} returns false.
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        loggingWorker.setOverflowPolicy(overflowPolicy);
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return loggingWorker.getOverflowPolicy();
+    }
+
+    /**
+     * Set the max. size of the queued log messages; the queue is full when it is reached, and the overflow
+     * policy applies. The size of a message is estimated as it takes on the heap.
+     *
+     * @param maxQueueBytes size in bytes, 8 MBytes by default.
+     */
+    public void setMaxQueueBytes(long maxQueueBytes) {
+        loggingWorker.setMaxQueueBytes(maxQueueBytes);
+    }
+
+    public long getMaxQueueBytes() {
+        return loggingWorker.getMaxQueueBytes();
+    }
+
+    /**
+     * Returns the estimated size of the log messages waiting in the queue in bytes.
+     */
+    public long getQueuedBytes() {
+        return loggingWorker.getQueuedBytes();
+    }
+
+    public int getQueuedCount() {
+        return loggingWorker.getQueuedCount();
+    }
+
+    /**
+     * Keep the most recent log messages in memory, sent or not - e.g. for a crash report, see
+     * {@link #getRecentLogs()}. The messages kept so far are dropped.
+     *
+     * @param maxCount number of messages, zero (the default) not to keep them.
+     * @param maxBytes max. size of the messages kept, estimated as they take on the heap.
+     */
+    public void setRecentLogs(int maxCount, long maxBytes) {
+        loggingWorker.setRecentLogs(maxCount, maxBytes);
+    }
+
+    /**
+     * Returns the most recent log messages, or null if they are not kept. Taking their snapshot (or
+     * dumping them to a file) does not lock, so it can be done from an uncaught exception handler.
+     */
+    public RecentLogs getRecentLogs() {
+        return loggingWorker.getRecentLogs();
+    }
+
+    /**
+     * Set the max. time the caller waits for free space in the queue with {@link OverflowPolicy#BLOCK}.
+     *
+     * @param blockTimeout time in milliseconds, 100 by default.
+     */
+    public void setBlockTimeout(long blockTimeout) {
+        loggingWorker.setBlockTimeout(blockTimeout);
+    }
+
     public void log(int priority, String tag, String message) {
-        loggingWorker.addLineToQueue(priority, tag, message);
+        if (isLoggable(priority)) {
+            loggingWorker.addLineToQueue(priority, tag, message);
+        }
     }
 
-    public String getDeviceId() {
-        return loggingWorker.getDeviceId();
+    /**
+     * Log the message with the throwable's stack trace. The caller only passes the throwable - the trace
+     * is formatted on the sender's thread, and a trace sent recently is replaced with a reference to it
+     * and the number of times it has occurred.
+     *
+     * @param message   may be null.
+     * @param throwable must not be changed after it has been logged.
+     */
+    public void log(int priority, String tag, String message, Throwable throwable) {
+        if (throwable == null) {
+            log(priority, tag, message);
+        } else if (isLoggable(priority)) {
+            loggingWorker.addThrowableToQueue(priority, tag, message, throwable);
+        }
+    }
+
+    /**
+     * Same as {@link #log(int, String, String)}, but never throws - safe to call from the UI thread
+     * (as long as the overflow policy is not {@link OverflowPolicy#BLOCK}).
+     *
+     * @return false if the message has been rejected.
+     */
+    public boolean tryLog(int priority, String tag, String message) {
+        if (!isLoggable(priority)) {
+            return true;
+        }
+
+        try {
+            return loggingWorker.tryAddLineToQueue(priority, tag, message);
+        } catch (RuntimeException ex) {
+            Log.e(TAG, "Cannot queue the log message. Error: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Log several lines at once, e.g. a multi-line dump. They are queued one after another in a single
+     * step, so the logs of the tag from other threads don't get in between, and the queue overflow
+     * either takes all of them or rejects all of them.
+     */
+    public void logBatch(int priority, String tag, Collection<String> lines) {
+        if (isLoggable(priority)) {
+            loggingWorker.addLinesToQueue(priority, tag, lines);
+        }
+    }
+
+    /**
+     * Same as {@link #logBatch(int, String, Collection)}, but never throws.
+     *
+     * @return false if the lines have been rejected.
+     */
+    public boolean tryLogBatch(int priority, String tag, Collection<String> lines) {
+        if (!isLoggable(priority)) {
+            return true;
+        }
+
+        try {
+            return loggingWorker.tryAddLinesToQueue(priority, tag, lines);
+        } catch (RuntimeException ex) {
+            Log.e(TAG, "Cannot queue the log messages. Error: " + ex.getMessage());
+            return false;
+        }
     }
 
-    static class LogItem {
+    /**
+     * Same as {@link #log(int, String, String, Throwable)}, but never throws.
+     *
+     * @return false if the message has been rejected.
+     */
+    public boolean tryLog(int priority, String tag, String message, Throwable throwable) {
+        if (throwable == null) {
+            return tryLog(priority, tag, message);
+        }
+        if (!isLoggable(priority)) {
+            return true;
+        }
+
+        try {
+            return loggingWorker.tryAddThrowableToQueue(priority, tag, message, throwable);
+        } catch (RuntimeException ex) {
+            Log.e(TAG, "Cannot queue the log message. Error: " + ex.getMessage());
+            return false;
+        }
+    }
 
-        private static final String LINE_SEP_REPLACER = "\u2028";
+    /**
+     * Same as {@link #tryLog(int, String, String)}, but the message is rendered on the sender's thread,
+     * so building it costs the caller nothing - unless the durable queue is on, which renders it on the
+     * caller's thread to journal it.
+     *
+     * @return false if the message has been rejected.
+     */
+    public boolean tryLogDeferred(int priority, String tag, DeferredMessage message) {
+        if (!isLoggable(priority)) {
+            return true;
+        }
 
-        public final int mPriority;
-        public final String mTag;
-        public final String mMessage;
+        try {
+            return loggingWorker.tryAddDeferredToQueue(priority, tag, message);
+        } catch (RuntimeException ex) {
+            Log.e(TAG, "Cannot queue the log message. Error: " + ex.getMessage());
+            return false;
+        }
+    }
 
-        public LogItem(int priority, String tag, String message) {
-            mPriority = priority;
-            mTag = tag.replace("\n", LINE_SEP_REPLACER).replace(";", "");
-            mMessage = message.replace("\n", LINE_SEP_REPLACER);
+    /**
+     * Same as {@link #tryLogDeferred(int, String, DeferredMessage)} with the throwable's stack trace -
+     * see {@link #log(int, String, String, Throwable)}.
+     *
+     * @param throwable may be null.
+     * @return false if the message has been rejected.
+     */
+    public boolean tryLogDeferred(int priority, String tag, DeferredMessage message, Throwable throwable) {
+        if (throwable == null) {
+            return tryLogDeferred(priority, tag, message);
+        }
+        if (!isLoggable(priority)) {
+            return true;
         }
 
-        public LogItem(String priority, String tag, String message) throws NumberFormatException {
-            this(Integer.parseInt(priority), tag, message);
+        try {
+            return loggingWorker.tryAddThrowableToQueue(priority, tag, message, throwable);
+        } catch (RuntimeException ex) {
+            Log.e(TAG, "Cannot queue the log message. Error: " + ex.getMessage());
+            return false;
         }
     }
+
+    public String getDeviceId() {
+        return loggingWorker.getDeviceId();
+    }
+
+    /**
+     * Returns the logs waiting in the local storage, without reading them; null until the storage
+     * has been opened by the sender.
+     */
+    public LogStorage.Backlog getStorageBacklog() {
+        return loggingWorker.getStorageBacklog();
+    }
 }
@@ -0,0 +1,69 @@
+package com.logentries.misc;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.lang.reflect.Method;
+
+/**
+ * Platform of an Android application: the files are kept in the application's files directory, the
+ * device properties are read from the system properties of Android and the logger's own problems go
+ * to logcat.
+ */
+public class AndroidPlatform implements Platform {
+
+    private static final String TAG = "LogentriesAndroidLogger";
+
+    private final Context context;
+
+    public AndroidPlatform(Context context) {
+        this.context = context;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return context.getFilesDir();
+    }
+
+    /**
+     * Returns the sanitized process name without the package name (e.g. "sync") for the processes
+     * other than the main one.
+     */
+    @Override
+    public String getProcessKey() {
+        String name = Utils.getProcessName();
+        String packageName = context.getPackageName();
+        if (name.isEmpty() || name.equals(packageName)) {
+            return "";
+        }
+
+        if (packageName != null && name.startsWith(packageName + ":")) {
+            name = name.substring(packageName.length() + 1);
+        }
+        return name.replaceAll("[^A-Za-z0-9_]", "_");
+    }
+
+    @Override
+    public String getDeviceProperty(String name) {
+        try {
+            Method getString = Build.class.getDeclaredMethod("getString", String.class);
+            getString.setAccessible(true);
+            return getString.invoke(null, name).toString();
+        } catch (Exception ex) {
+            // Ignore the exception - we simply couldn't access the property;
+            Log.e(TAG, String.valueOf(ex.getMessage()));
+        }
+
+        return "";
+    }
+
+    @Override
+    public void log(int priority, String tag, String message, Throwable throwable) {
+        if (throwable != null) {
+            message = message + '\n' + Log.getStackTraceString(throwable);
+        }
+        Log.println(priority, tag, message);
+    }
+}
@@ -0,0 +1,75 @@
+package com.logentries.bridge;
+
+import com.logentries.logger.AndroidLogger;
+import com.logentries.logger.RecentLogs;
+import com.logentries.logger.TestLoggers;
+import com.logentries.net.InMemoryTransport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class LogentriesSlf4jLoggerTest {
+
+    private static final String LOGGER_NAME = "com.example.net.NetworkClient";
+
+    @Rule
+    public TemporaryFolder filesDir = new TemporaryFolder();
+
+    private final LogentriesLoggerFactory factory = new LogentriesLoggerFactory();
+    private AndroidLogger androidLogger;
+
+    @Before
+    public void setUp() throws Exception {
+        androidLogger = TestLoggers.createInstance(filesDir.getRoot(), new InMemoryTransport(false));
+        androidLogger.setRecentLogs(16, 1024 * 1024);
+    }
+
+    @After
+    public void tearDown() {
+        LoggerTags.removeTag(LOGGER_NAME);
+        LoggerTags.removeTag("com.example");
+    }
+
+    @Test
+    public void usesSimpleNameByDefault() {
+        factory.getLogger(LOGGER_NAME).info("connected to {}", "example.com");
+
+        RecentLogs.Entry entry = lastEntry();
+        assertEquals("NetworkClient", entry.getTag());
+        assertEquals("connected to example.com", entry.getMessage());
+    }
+
+    @Test
+    public void tagSetAfterLoggerCreationApplies() {
+        Logger logger = factory.getLogger(LOGGER_NAME);
+        logger.info("before");
+        assertEquals("NetworkClient", lastEntry().getTag());
+
+        LoggerTags.setTag("com.example", "Example");
+        assertSame(logger, factory.getLogger(LOGGER_NAME));
+        logger.info("after a package tag");
+        assertEquals("Example", lastEntry().getTag());
+
+        LoggerTags.setTag(LOGGER_NAME, "Net");
+        logger.info("after a logger tag");
+        assertEquals("Net", lastEntry().getTag());
+
+        LoggerTags.removeTag(LOGGER_NAME);
+        logger.info("after the logger tag is removed");
+        assertEquals("Example", lastEntry().getTag());
+    }
+
+    private RecentLogs.Entry lastEntry() {
+        List<RecentLogs.Entry> entries = androidLogger.getRecentLogs().snapshot();
+        return entries.get(entries.size() - 1);
+    }
+}
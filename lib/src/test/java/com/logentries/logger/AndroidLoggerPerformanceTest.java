@@ -0,0 +1,338 @@
+package com.logentries.logger;
+
+import com.logentries.misc.JvmPlatform;
+import com.logentries.net.InMemoryTransport;
+import com.logentries.net.LogTransport;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Guards the cost of {@link AndroidLogger#log(int, String, String)} on the caller's thread: the bytes it
+ * allocates per call, and its latency when several threads log at once. Runs on the JVM, with the logger
+ * on a {@link JvmPlatform}.
+ * <p>
+ * A call costs about 80 bytes and well under a microsecond. The allocation thresholds leave about three
+ * times that, enough to catch e.g. a formatted string added to the path; the latency ones leave much more,
+ * since the threads of a busy build machine get descheduled and parked on the queue's lock.
+ */
+public class AndroidLoggerPerformanceTest {
+
+    private static final String TAG = "PerformanceTest";
+
+    private static final int WARM_UP_CALLS = 20000;
+    private static final int MEASURED_CALLS = 20000;
+
+    private static final int THREAD_COUNT = 4;
+    private static final int CALLS_PER_THREAD = 20000;
+
+    /**
+     * Logs longer than {@link AsyncLoggingWorker#LOG_LENGTH_LIMIT} are split into chunks on the caller's
+     * thread - this one into four.
+     */
+    private static final int LONG_MESSAGE_LENGTH = 3 * AsyncLoggingWorker.LOG_LENGTH_LIMIT + 100;
+
+    // Allocated bytes per call.
+    private static final long SHORT_MESSAGE_MAX_BYTES = 256;
+    private static final long OVERFLOW_MAX_BYTES = 256;
+    // In copies of the message (the size of a copy depends on the JVM) - the chunks copy it once.
+    private static final double LONG_MESSAGE_MAX_COPIES = 1.5;
+
+    // Caller-side latency in nanoseconds.
+    private static final long SHORT_MESSAGE_MAX_P50 = 5000;
+    private static final long SHORT_MESSAGE_MAX_P99 = 200000;
+    private static final long OVERFLOW_MAX_P50 = 5000;
+    private static final long OVERFLOW_MAX_P99 = 200000;
+
+    @Rule
+    public TemporaryFolder filesDir = new TemporaryFolder();
+
+    private final String[] shortMessages = new String[64];
+    private String longMessage;
+
+    private AndroidLogger logger;
+    private BlockedTransportFactory blockedTransports;
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < shortMessages.length; ++i) {
+            shortMessages[i] = "User " + i + " opened the settings screen";
+        }
+
+        char[] chars = new char[LONG_MESSAGE_LENGTH];
+        Arrays.fill(chars, 'x');
+        longMessage = new String(chars);
+    }
+
+    @After
+    public void tearDown() {
+        // Let the queue drain, so that the next logger can close this one.
+        if (blockedTransports != null) {
+            blockedTransports.release();
+        }
+    }
+
+    @Test
+    public void shortMessageAllocation() throws Exception {
+        assumeAllocationCounting();
+        logger = createLogger(new InMemoryTransport(false));
+
+        Runnable call = new Runnable() {
+            private int i = 0;
+
+            @Override
+            public void run() {
+                logger.log(LogPriority.INFO, TAG, shortMessages[i++ & 63]);
+            }
+        };
+        repeat(call, WARM_UP_CALLS);
+
+        long bytes = allocatedBytesPerCall(call, MEASURED_CALLS);
+        assertTrue("A short message allocates " + bytes + " bytes per call, more than " +
+                SHORT_MESSAGE_MAX_BYTES, bytes <= SHORT_MESSAGE_MAX_BYTES);
+    }
+
+    @Test
+    public void longMessageAllocation() throws Exception {
+        assumeAllocationCounting();
+        logger = createLogger(new InMemoryTransport(false));
+
+        Runnable call = new Runnable() {
+            @Override
+            public void run() {
+                logger.log(LogPriority.INFO, TAG, longMessage);
+            }
+        };
+        // Fewer calls, so the queue never fills up with the chunks.
+        repeat(call, 200);
+
+        long bytes = allocatedBytesPerCall(call, 200);
+        long maxBytes = (long) (LONG_MESSAGE_MAX_COPIES * allocatedBytesPerCall(new Runnable() {
+            @Override
+            public void run() {
+                longMessage.substring(1);
+            }
+        }, 200));
+        assertTrue("A message of " + LONG_MESSAGE_LENGTH + " chars allocates " + bytes + " bytes per call, more than " +
+                maxBytes, bytes <= maxBytes);
+    }
+
+    @Test
+    public void overflowAllocation() throws Exception {
+        assumeAllocationCounting();
+
+        for (OverflowPolicy policy : Arrays.asList(OverflowPolicy.DROP_NEWEST, OverflowPolicy.DROP_OLDEST)) {
+            tearDown();
+            blockedTransports = new BlockedTransportFactory();
+            logger = createLogger(blockedTransports);
+            logger.setOverflowPolicy(policy);
+            fillQueue();
+
+            Runnable call = new Runnable() {
+                private int i = 0;
+
+                @Override
+                public void run() {
+                    logger.tryLog(LogPriority.INFO, TAG, shortMessages[i++ & 63]);
+                }
+            };
+            repeat(call, WARM_UP_CALLS);
+
+            long bytes = allocatedBytesPerCall(call, MEASURED_CALLS);
+            assertTrue("With the queue full and " + policy + " a message allocates " + bytes +
+                    " bytes per call, more than " + OVERFLOW_MAX_BYTES, bytes <= OVERFLOW_MAX_BYTES);
+        }
+    }
+
+    @Test
+    public void shortMessageLatencyUnderContention() throws Exception {
+        logger = createLogger(new InMemoryTransport(false));
+
+        long[] latencies = measureLatencies(false);
+        assertLatencies("short messages", latencies, SHORT_MESSAGE_MAX_P50, SHORT_MESSAGE_MAX_P99);
+    }
+
+    @Test
+    public void overflowLatencyUnderContention() throws Exception {
+        blockedTransports = new BlockedTransportFactory();
+        logger = createLogger(blockedTransports);
+        logger.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+        fillQueue();
+
+        long[] latencies = measureLatencies(true);
+        assertLatencies("the queue full", latencies, OVERFLOW_MAX_P50, OVERFLOW_MAX_P99);
+        assertFalse(logger.tryLog(LogPriority.INFO, TAG, shortMessages[0]));
+    }
+
+    private AndroidLogger createLogger(LogTransport.Factory transportFactory) throws IOException {
+        // The logger's own diagnostics (e.g. of the queue overflow) are not printed.
+        JvmPlatform platform = new JvmPlatform(filesDir.getRoot(), "", Integer.MAX_VALUE);
+        return AndroidLogger.createInstance(platform, transportFactory, false, false, "device", false, false, false, 1,
+                null);
+    }
+
+    /**
+     * Fills the queue of the logger, which cannot send, up to its limit.
+     */
+    private void fillQueue() {
+        OverflowPolicy policy = logger.getOverflowPolicy();
+        logger.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+        int i = 0;
+        while (logger.tryLog(LogPriority.INFO, TAG, shortMessages[i++ & 63])) {
+            // Until the first one is rejected.
+        }
+        logger.setOverflowPolicy(policy);
+    }
+
+    /**
+     * Logs from several threads at once.
+     *
+     * @return latency of each call in nanoseconds, sorted.
+     */
+    private long[] measureLatencies(final boolean tryLog) throws Exception {
+        final long[][] latencies = new long[THREAD_COUNT][CALLS_PER_THREAD];
+        final CyclicBarrier start = new CyclicBarrier(THREAD_COUNT);
+        final Throwable[] failure = new Throwable[1];
+
+        Thread[] threads = new Thread[THREAD_COUNT];
+        for (int t = 0; t < THREAD_COUNT; ++t) {
+            final long[] threadLatencies = latencies[t];
+            threads[t] = new Thread("Logging thread #" + t) {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < WARM_UP_CALLS; ++i) {
+                            log(tryLog, i);
+                        }
+
+                        start.await();
+                        for (int i = 0; i < CALLS_PER_THREAD; ++i) {
+                            long begin = System.nanoTime();
+                            log(tryLog, i);
+                            threadLatencies[i] = System.nanoTime() - begin;
+                        }
+                    } catch (Throwable ex) {
+                        failure[0] = ex;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+
+        long[] all = new long[THREAD_COUNT * CALLS_PER_THREAD];
+        for (int t = 0; t < THREAD_COUNT; ++t) {
+            System.arraycopy(latencies[t], 0, all, t * CALLS_PER_THREAD, CALLS_PER_THREAD);
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    private void log(boolean tryLog, int i) {
+        if (tryLog) {
+            logger.tryLog(LogPriority.INFO, TAG, shortMessages[i & 63]);
+        } else {
+            logger.log(LogPriority.INFO, TAG, shortMessages[i & 63]);
+        }
+    }
+
+    private static void assertLatencies(String condition, long[] sortedLatencies, long maxP50, long maxP99) {
+        long p50 = sortedLatencies[sortedLatencies.length / 2];
+        long p99 = sortedLatencies[sortedLatencies.length * 99 / 100];
+        assertTrue("With " + condition + " p50 latency is " + p50 + " ns, more than " + maxP50, p50 <= maxP50);
+        assertTrue("With " + condition + " p99 latency is " + p99 + " ns, more than " + maxP99, p99 <= maxP99);
+    }
+
+    private static void assumeAllocationCounting() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("The JVM does not count allocated bytes",
+                threads instanceof com.sun.management.ThreadMXBean &&
+                        ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported());
+        ((com.sun.management.ThreadMXBean) threads).setThreadAllocatedMemoryEnabled(true);
+    }
+
+    private static long allocatedBytesPerCall(Runnable call, int count) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        repeat(call, count);
+        return (threads.getThreadAllocatedBytes(threadId) - before) / count;
+    }
+
+    private static void repeat(Runnable call, int count) {
+        for (int i = 0; i < count; ++i) {
+            call.run();
+        }
+    }
+
+    /**
+     * Creates transports, which do not connect until they are released - the logs stay in the queue
+     * till then. Once connected they discard the logs.
+     */
+    private static class BlockedTransportFactory implements LogTransport.Factory {
+
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        void release() {
+            released.countDown();
+        }
+
+        @Override
+        public LogTransport createTransport() {
+            return new LogTransport() {
+                @Override
+                public void connect() throws IOException {
+                    try {
+                        released.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted");
+                    }
+                }
+
+                @Override
+                public void write(List<String> batch) {
+                }
+
+                @Override
+                public void flush() {
+                }
+
+                @Override
+                public void close() {
+                }
+
+                @Override
+                public boolean isHealthy() {
+                    return released.getCount() == 0;
+                }
+
+                @Override
+                public boolean requiresJsonFormat() {
+                    return false;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.logentries.logger;
+
+import com.logentries.misc.JvmPlatform;
+import com.logentries.net.LogTransport;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Creates the {@link AndroidLogger} instance on a {@link JvmPlatform}, for the tests outside this package.
+ */
+public final class TestLoggers {
+
+    private TestLoggers() {
+    }
+
+    /**
+     * @param filesDir directory for the logger's files.
+     */
+    public static AndroidLogger createInstance(File filesDir, LogTransport.Factory transportFactory) throws IOException {
+        // The logger's own diagnostics are not printed.
+        JvmPlatform platform = new JvmPlatform(filesDir, "", Integer.MAX_VALUE);
+        return AndroidLogger.createInstance(platform, transportFactory, false, false, "device", false, false, false, 1,
+                null);
+    }
+}